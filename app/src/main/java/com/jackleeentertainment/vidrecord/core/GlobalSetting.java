@@ -2,6 +2,9 @@ package com.jackleeentertainment.vidrecord.core;
 
 import android.media.MediaRecorder;
 
+import com.jackleeentertainment.vidrecord.core.data.PacketRing;
+import com.jackleeentertainment.vidrecord.core.data.PacketStorage;
+
 /**
  * Created by Jacklee on 16. 4. 2..
  */
@@ -16,6 +19,71 @@ public class GlobalSetting {
     public  static   int VIDEO_WIDTH = 1280;  // dimensions for 720p video
     public  static   int VIDEO_HEIGHT = 720;
 
+    // Round the encoder ring buffers up to powers of two (mask instead of modulus on wrap).
+    // Costs ~40% more memory for the data ring, so off by default.
+    public static boolean isPowerOfTwoEncoderBuffer = false;
+
+    // What the encoder ring does when it fills up: evict the oldest GOPs, keeping the newest
+    // seconds at constant memory, or refuse frames and stop the recording.
+    public static PacketRing.OverflowPolicy encoderBufferOverflowPolicy =
+            PacketRing.OverflowPolicy.DROP_OLDEST_GOP;
+
+    // Where the encoder ring keeps its encoded bytes: a heap byte[], a direct ByteBuffer,
+    // which MediaMuxer reads without going through JNI array access, or a memory-mapped
+    // file in app-private storage, for recordings longer than RAM allows.
+    public static PacketStorage.Type encoderBufferStorage = PacketStorage.Type.HEAP;
+
+    // Take encoder output through MediaCodec callbacks as soon as it's produced (API 23+)
+    // instead of polling once per rendered frame.  Polling is the fallback on older devices.
+    public static boolean isAsyncEncoder = true;
+
+    // Save with the pure-Java fragmented MP4 writer instead of MediaMuxer.  Written one GOP
+    // at a time, so an interrupted save still leaves a playable file.  Video only, so it's
+    // ignored while isAudioRecording captures audio; MediaMuxer saves those.
+    public static boolean isFragmentedMp4Save = false;
+
+    // Append each segment to the output file (fragmented MP4) as soon as the record button is
+    // released, so that saving only has to write the index.  Video only like the above, so
+    // it's refused while audio is being recorded.
+    public static boolean isIncrementalSave = false;
+
+    // Video bit rate.  The encoder ring is sized for VIDEO_BIT_RATE; with isAdaptiveBitRate
+    // the rate drops as far as VIDEO_MIN_BIT_RATE when the encoder overshoots, and frames
+    // are skipped when drawing falls behind.  See EncoderRateController.
+    public static int VIDEO_BIT_RATE = 6000000;
+    public static int VIDEO_MIN_BIT_RATE = 1000000;
+    public static boolean isAdaptiveBitRate = true;
+
+    // Run the filter once per frame, into an offscreen texture at the encode resolution, and
+    // copy that to the preview and the encoder instead of filtering for each of them.
+    public static boolean isRenderOnce = true;
+
+    // Resolution the filter runs at, as a fraction of the encoder's configured size (0.25 to 1,
+    // applied to each side; that's VIDEO_HEIGHT x VIDEO_WIDTH, see CameraFragment).  The
+    // result is scaled up to the preview and the encoder, so heavy filters stay at frame rate
+    // on high-DPI phones at some cost in sharpness.  Below 1 implies isRenderOnce.
+    public static float fRenderScale = 1.0f;
+
+    // Keep the filters' linked shader programs for the life of the render thread, and on GLES3
+    // save their binaries to the cache dir, so filter switches and cold starts don't compile.
+    public static boolean isProgramCache = true;
+
+    // Keep filters after switching away from them, and build the neighbours of the selected one
+    // in the filter strip ahead of time, so a switch is a pointer swap.  Least recently used
+    // filters are dropped beyond the budget of (estimated) GPU memory.  See FilterPool.
+    public static boolean isFilterPool = true;
+    public static int intFilterPoolBudgetBytes = 16 * 1024 * 1024;
+
+    // Buffer span used with mapped storage.  Costs disk, not heap: ~225 MB at 6 Mbps.
+    public static int intMappedBufferSpanSec = 300;
+
+
+    // Capture microphone audio and mux it in as AAC.  Falls back to video only if the
+    // microphone can't be opened.
+    public static boolean isAudioRecording = true;
+    public static int AUDIO_SAMPLE_RATE = 44100;
+    public static int AUDIO_CHANNEL_COUNT = 1;
+    public static int AUDIO_BIT_RATE = 128000;
 
     public  static boolean isEqualizer = false;
 
@@ -43,15 +111,20 @@ I'm uncertain about effective this is as there's little to no feedback on it's s
                      */
 
 
+    /**
+     * Recording speed.  Captured audio is time-stretched by fPlaySpeed (pitch kept) before
+     * encoding, and video PTS are scaled to match; 2.0 plays back twice as fast.
+     */
     public static class AudioSpeed {
 
         public  static int iFreq = 8000;
         public   static int iSeekbarPoint = 50;
-        public  static float fPlaySpeed = 1.0f;
+        // Read by the audio and encoder threads.
+        public  static volatile float fPlaySpeed = 1.0f;
 
         public static void withFreq(int freq) {
-
-
+            iFreq = freq;
+            fPlaySpeed = freq / 8000f;
         }
 
 
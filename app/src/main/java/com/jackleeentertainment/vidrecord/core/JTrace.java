@@ -0,0 +1,35 @@
+package com.jackleeentertainment.vidrecord.core;
+
+import com.jackleeentertainment.vidrecord.BuildConfig;
+
+/**
+ * Per-subsystem trace levels.
+ * <p/>
+ * The levels come from BuildConfig fields set per build type in build.gradle, so they are
+ * compile-time constants.  Guard a log call with {@code if (JTrace.ENCODER >= JTrace.VERBOSE)},
+ * or with a {@code static final boolean} derived from it, and javac drops the whole block --
+ * string building included -- when the level is lower.  Release builds set every level to
+ * {@link #WARN}.
+ * <p/>
+ * Per-packet and per-frame diagnostics must always be guarded at {@link #VERBOSE}, so that a
+ * steady-state recording doesn't allocate for logging.
+ */
+public final class JTrace {
+
+    public static final int NONE = 0;
+    public static final int WARN = 1;
+    public static final int DEBUG = 2;
+    public static final int VERBOSE = 3;
+
+    // JaehakEncoder: codec setup, drain loop, muxing.
+    public static final int ENCODER = BuildConfig.TRACE_ENCODER;
+
+    // JaehakEncoderBuffer and PacketRing.
+    public static final int ENCODER_BUFFER = BuildConfig.TRACE_ENCODER_BUFFER;
+
+    // Camera preview and the GL draw loop.
+    public static final int RENDER = BuildConfig.TRACE_RENDER;
+
+    private JTrace() {
+    }
+}
@@ -0,0 +1,468 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.audiofx.NoiseSuppressor;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import com.jackleeentertainment.vidrecord.core.GlobalSetting;
+import com.jackleeentertainment.vidrecord.core.JTrace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Captures microphone audio and encodes it to AAC in {@link EncoderBufferHolder#audioBuffer}.
+ * <p/>
+ * Capture and encoding run on one dedicated thread: it blocks in AudioRecord.read(), copies
+ * the chunk into codec input buffers, then drains the codec output into the ring.  Nothing
+ * runs on the GL or UI threads, and the steady state doesn't allocate.
+ * <p/>
+ * Microphone audio is captured all the time, but only what falls inside a run of the
+ * {@link SessionTimeline} is encoded, trimmed to the sample, and it's stamped with the run's
+ * session time like the video.  At a run speed other than 1.0 the PCM is time-stretched
+ * before encoding.
+ * <p/>
+ * Segment changes are queued and applied by the audio thread between chunks; since the
+ * timeline's runs decide which samples are encoded, each segment holds exactly its run's audio.
+ */
+public class AudioEncoder {
+    private static final String TAG = "AudioEncoder";
+    private static final boolean DEBUG = JTrace.ENCODER >= JTrace.DEBUG;
+    private static final boolean VERBOSE = JTrace.ENCODER >= JTrace.VERBOSE;  // per packet
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    public static final int SAMPLES_PER_PACKET = 1024;      // AAC-LC frame
+    private static final int TIMEOUT_USEC = 10000;
+
+    private static final int OP_OPEN_SEGMENT = 0;
+    private static final int OP_CLOSE_SEGMENT = 1;
+    private static final int OP_DELETE_LAST_SEGMENT = 2;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final AudioRecord audioRecord;
+    private final MediaCodec mediaCodec;
+    private NoiseSuppressor noiseSuppressor;
+    private final AudioThread audioThread;
+    private final ConcurrentLinkedQueue<Integer> pendingOps = new ConcurrentLinkedQueue<Integer>();
+    private volatile boolean isStopRequested = false;
+
+    /**
+     * Sets up capture and the encoder, and starts the audio thread.
+     *
+     * @throws IOException If the microphone can't be opened, e.g. the permission is missing.
+     */
+    public AudioEncoder(int sampleRate, int channelCount, int bitRate) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        int channelConfig = channelCount == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int chunkBytes = SAMPLES_PER_PACKET * 2 * channelCount;
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("unsupported audio config: " + sampleRate + " Hz");
+        }
+        audioRecord = new AudioRecord(GlobalSetting.audiorecordsource, sampleRate,
+                channelConfig, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, chunkBytes * 4));
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            throw new IOException("AudioRecord init failed");
+        }
+        if (GlobalSetting.isNoiseSuppressed && NoiseSuppressor.isAvailable()) {
+            noiseSuppressor = NoiseSuppressor.create(audioRecord.getAudioSessionId());
+        }
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, chunkBytes);
+        if (DEBUG) Log.d(TAG, "format: " + format);
+        try {
+            mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        } catch (IOException ioe) {
+            releaseCapture();
+            throw ioe;
+        }
+        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mediaCodec.start();
+
+        audioThread = new AudioThread(chunkBytes);
+        audioThread.start();
+    }
+
+    /**
+     * Returns the number of AAC packets per second at the given sample rate, rounded up.
+     */
+    public static int getPacketsPerSec(int sampleRate) {
+        return (sampleRate + SAMPLES_PER_PACKET - 1) / SAMPLES_PER_PACKET;
+    }
+
+    public void openSegment() {
+        pendingOps.add(OP_OPEN_SEGMENT);
+    }
+
+    public void closeSegment() {
+        pendingOps.add(OP_CLOSE_SEGMENT);
+    }
+
+    public void deleteLastSegment() {
+        pendingOps.add(OP_DELETE_LAST_SEGMENT);
+    }
+
+    /**
+     * Stops capture, drains the encoder and releases everything.  Does not return until the
+     * audio thread has stopped.
+     */
+    public void shutdown() {
+        if (DEBUG) Log.d(TAG, "releasing audio encoder objects");
+        isStopRequested = true;
+        try {
+            audioThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Audio thread join() was interrupted", ie);
+        }
+        mediaCodec.stop();
+        mediaCodec.release();
+        releaseCapture();
+    }
+
+    private void releaseCapture() {
+        if (noiseSuppressor != null) {
+            noiseSuppressor.release();
+            noiseSuppressor = null;
+        }
+        audioRecord.release();
+    }
+
+    /**
+     * Reads PCM into codec input buffers and moves codec output into the ring.  At speeds
+     * other than 1.0 the PCM goes through a {@link TimeStretcher} first.
+     */
+    private class AudioThread extends Thread {
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        private boolean isBufferFullReported = false;
+
+        private final TimeStretcher stretcher;
+        private final short[] captureBlock;
+        private final short[] stretchedBlock;
+        private boolean isStretching = false;
+
+        private AudioEncoderBuffer buffer;
+        private SessionTimeline timeline;
+        // Before API 21 only; later, buffers are fetched by index.
+        private ByteBuffer[] inputBuffers;
+        private ByteBuffer[] outputBuffers;
+
+        // Frames (samples per channel) read so far, and the run being encoded, or -1.
+        private long capturedFrames = 0;
+        private long currentRunId = -1;
+        private AudioTimestamp audioTimestamp;
+
+        AudioThread(int chunkBytes) {
+            super("JaehakAudio");
+            stretcher = new TimeStretcher(sampleRate, channelCount);
+            captureBlock = new short[chunkBytes / 2];
+            stretchedBlock = new short[chunkBytes / 2];
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            buffer = EncoderBufferHolder.audioBuffer;
+            timeline = EncoderBufferHolder.timeline;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                inputBuffers = mediaCodec.getInputBuffers();
+                outputBuffers = mediaCodec.getOutputBuffers();
+            }
+            audioRecord.startRecording();
+            while (!isStopRequested) {
+                if (!encodeChunk()) {
+                    break;
+                }
+                drain(buffer, false);
+            }
+            audioRecord.stop();
+
+            if (isStopRequested) {
+                signalEndOfStream();
+            }
+            applyPendingOps(buffer);
+            Log.d(TAG, "audio thread stopped");
+        }
+
+        /**
+         * Reads one chunk, and encodes the part of it that's inside a run.
+         *
+         * @return False if capture failed.
+         */
+        private boolean encodeChunk() {
+            int read = audioRecord.read(captureBlock, 0, captureBlock.length);
+            if (read < 0) {
+                Log.w(TAG, "AudioRecord.read failed: " + read);
+                signalEndOfStream();
+                return false;
+            }
+            int frames = read / channelCount;
+            long chunkUsec = getChunkCaptureUsec(frames);
+            // Segment ops are queued before their run starts or after it ends, so applying
+            // them here puts every packet of a run in its segment.
+            applyPendingOps(buffer);
+            capturedFrames += frames;
+
+            long chunkEndUsec = chunkUsec + frames * 1000000L / sampleRate;
+            SessionTimeline.Run run = timeline.getRunOverlapping(chunkUsec, chunkEndUsec);
+            if (run == null) {
+                // Paused.
+                endRun();
+                return true;
+            }
+            // The part of the chunk inside the run.
+            int from = 0;
+            int to = frames;
+            if (run.startUsec > chunkUsec) {
+                from = toFrames(run.startUsec - chunkUsec, frames);
+            }
+            if (run.endUsec < chunkEndUsec) {
+                to = toFrames(run.endUsec - chunkUsec, frames);
+            }
+            if (run.id != currentRunId) {
+                endRun();
+                currentRunId = run.id;
+                buffer.startRun(run.toSessionUsec(chunkUsec + from * 1000000L / sampleRate));
+                isStretching = run.speed != 1.0f;
+                stretcher.setSpeed(run.speed);
+            }
+            if (to > from) {
+                if (isStretching) {
+                    stretcher.putSamples(captureBlock, from * channelCount,
+                            (to - from) * channelCount);
+                    queueStretched();
+                } else {
+                    queueSamples(captureBlock, from * channelCount, (to - from) * channelCount);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Finishes the run being encoded: sends what's stretched, drops the rest.
+         */
+        private void endRun() {
+            if (currentRunId >= 0 && isStretching) {
+                queueStretched();
+                stretcher.clear();
+            }
+            currentRunId = -1;
+        }
+
+        /**
+         * Returns how many frames at the sample rate fit in usec, rounded up, at most max.
+         */
+        private int toFrames(long usec, int max) {
+            return (int) Math.min(max, (usec * sampleRate + 999999) / 1000000);
+        }
+
+        /**
+         * Returns when the first sample of the chunk just read was captured, in
+         * CLOCK_MONOTONIC microseconds like the session timeline.
+         */
+        private long getChunkCaptureUsec(int frames) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                long usec = getTimestampedCaptureUsec();
+                if (usec >= 0) {
+                    return usec;
+                }
+            }
+            // read() returns as soon as the chunk is complete: its last sample is about now.
+            return System.nanoTime() / 1000 - frames * 1000000L / sampleRate;
+        }
+
+        /**
+         * Returns the capture time of frame capturedFrames from the HAL's timestamp, or -1 if
+         * there isn't one yet.
+         */
+        @TargetApi(Build.VERSION_CODES.N)
+        private long getTimestampedCaptureUsec() {
+            if (audioTimestamp == null) {
+                audioTimestamp = new AudioTimestamp();
+            }
+            if (audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) !=
+                    AudioRecord.SUCCESS) {
+                return -1;
+            }
+            return (audioTimestamp.nanoTime + (capturedFrames - audioTimestamp.framePosition) *
+                    1000000000L / sampleRate) / 1000;
+        }
+
+        /**
+         * Copies samples into codec input buffers and queues them.  Drops what doesn't fit if
+         * the codec has no free buffer even after draining, leaving a gap of the same length
+         * in the timeline.
+         */
+        private void queueSamples(short[] samples, int offset, int count) {
+            while (count > 0) {
+                int inIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inIndex < 0) {
+                    // Output nobody has taken can hold the input buffers; take it, try again.
+                    drain(buffer, false);
+                    inIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+                }
+                if (inIndex < 0) {
+                    if (VERBOSE) Log.v(TAG, "no codec input buffer, dropping " + count +
+                            " samples");
+                    // Keep later audio at its capture time instead of pulling it early.
+                    buffer.advanceTimeline(count / channelCount, sampleRate);
+                    return;
+                }
+                ByteBuffer input = getInputBuffer(inIndex);
+                input.clear();
+                int n = Math.min(count, input.capacity() / 2);
+                n -= n % channelCount;
+                putSamples(input, samples, offset, n);
+                long ptsUsec = buffer.advanceTimeline(n / channelCount, sampleRate);
+                mediaCodec.queueInputBuffer(inIndex, 0, n * 2, ptsUsec, 0);
+                offset += n;
+                count -= n;
+            }
+        }
+
+        /**
+         * Moves stretched output into codec input buffers.  Whatever doesn't fit stays in the
+         * stretcher for next time.
+         */
+        private void queueStretched() {
+            while (stretcher.getOutputAvailable() > 0) {
+                int inIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+                if (inIndex < 0) {
+                    return;
+                }
+                ByteBuffer input = getInputBuffer(inIndex);
+                input.clear();
+                int count = stretcher.receiveSamples(stretchedBlock, 0,
+                        Math.min(stretchedBlock.length, input.capacity() / 2));
+                putSamples(input, stretchedBlock, 0, count);
+                long ptsUsec = buffer.advanceTimeline(count / channelCount, sampleRate);
+                mediaCodec.queueInputBuffer(inIndex, 0, count * 2, ptsUsec, 0);
+            }
+        }
+
+        private ByteBuffer getInputBuffer(int index) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return getInputBufferByIndex(index);
+            }
+            return inputBuffers[index];
+        }
+
+        private ByteBuffer getOutputBuffer(int index) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return getOutputBufferByIndex(index);
+            }
+            return outputBuffers[index];
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private ByteBuffer getInputBufferByIndex(int index) {
+            return mediaCodec.getInputBuffer(index);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private ByteBuffer getOutputBufferByIndex(int index) {
+            return mediaCodec.getOutputBuffer(index);
+        }
+
+        /**
+         * Writes samples to the start of input as little-endian 16-bit PCM.
+         */
+        private void putSamples(ByteBuffer input, short[] samples, int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                short sample = samples[offset + i];
+                input.put(i * 2, (byte) sample);
+                input.put(i * 2 + 1, (byte) (sample >> 8));
+            }
+        }
+
+        private void signalEndOfStream() {
+            int inIndex = mediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            if (inIndex >= 0) {
+                mediaCodec.queueInputBuffer(inIndex, 0, 0, buffer.advanceTimeline(0, sampleRate),
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(buffer, true);
+            }
+        }
+
+        private void applyPendingOps(AudioEncoderBuffer buffer) {
+            Integer op;
+            while ((op = pendingOps.poll()) != null) {
+                switch (op) {
+                    case OP_OPEN_SEGMENT:
+                        buffer.openSegment();
+                        break;
+                    case OP_CLOSE_SEGMENT:
+                        buffer.closeSegment();
+                        break;
+                    case OP_DELETE_LAST_SEGMENT:
+                        buffer.deleteLastSegment();
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Moves all pending codec output into the ring.  With untilEndOfStream, waits for the
+         * end-of-stream buffer.
+         */
+        private void drain(AudioEncoderBuffer buffer, boolean untilEndOfStream) {
+            int retries = 10;
+            while (true) {
+                int status = mediaCodec.dequeueOutputBuffer(bufferInfo,
+                        untilEndOfStream ? TIMEOUT_USEC : 0);
+                if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!untilEndOfStream || --retries == 0) {
+                        break;
+                    }
+                } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                        outputBuffers = mediaCodec.getOutputBuffers();
+                    }
+                } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // Has the csd-0 that MediaMuxer wants.
+                    buffer.setFormat(mediaCodec.getOutputFormat());
+                    if (DEBUG) Log.d(TAG, "audio output format changed: " + buffer.getFormat());
+                } else if (status >= 0) {
+                    ByteBuffer encoded = getOutputBuffer(status);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 &&
+                            bufferInfo.size != 0) {
+                        encoded.position(bufferInfo.offset);
+                        encoded.limit(bufferInfo.offset + bufferInfo.size);
+                        boolean isAdded = buffer.add(encoded, bufferInfo.presentationTimeUs);
+                        if (DEBUG && !isAdded && !isBufferFullReported) {
+                            Log.d(TAG, "audio buffer full, dropping packets");
+                        }
+                        isBufferFullReported = !isAdded;
+                        if (VERBOSE) {
+                            Log.v(TAG, "sent " + bufferInfo.size + " bytes to buffer, ts=" +
+                                    bufferInfo.presentationTimeUs);
+                        }
+                    }
+                    mediaCodec.releaseOutputBuffer(status, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                } else {
+                    Log.w(TAG, "unexpected result from dequeueOutputBuffer: " + status);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.jackleeentertainment.vidrecord.core.JTrace;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds encoded audio (AAC) in a circular buffer, next to the video in
+ * {@link JaehakEncoderBuffer}.
+ * <p/>
+ * Every AAC packet decodes on its own, so each one is added as a sync frame and eviction
+ * drops one packet at a time.  Segments are opened and closed together with the video's, so
+ * deleting the last segment rewinds both buffers.
+ * <p/>
+ * Only the audio thread may add packets or change segments.  The muxer reads through a pinned
+ * snapshot, like the video.
+ */
+public class AudioEncoderBuffer {
+    private static final String TAG = "AudioEncoderBuffer";
+    private static final boolean DEBUG = JTrace.ENCODER_BUFFER >= JTrace.DEBUG;
+
+    private final PacketRing packetRing;
+    private final ByteBuffer bbTotal;
+    private final SegmentTable segmentTable = new SegmentTable();
+
+    // Set by the audio thread once the codec reports it; has csd-0 for MediaMuxer.
+    private volatile MediaFormat format;
+
+    // Audio PTS: where the current run starts on the session timeline, plus the samples (per
+    // channel) encoded since, so within a run the timeline has no gaps or jitter.  Audio
+    // thread only.
+    private long runStartUsec;
+    private long runSamples;
+    private long timelineEndUsec;
+
+    /**
+     * Allocates the buffers for desiredSpanSec seconds of audio.
+     *
+     * @param packetsPerSec AAC packets per second: sample rate / 1024.
+     */
+    public AudioEncoderBuffer(int bitRate, int packetsPerSec, int desiredSpanSec) {
+        // Over-allocate both; the encoder's output rate is only roughly the requested one,
+        // and audio running out before video would cut the sound off early.
+        int dataSize = JaehakEncoderBuffer.computeDataSize(bitRate * 2, desiredSpanSec, false);
+        packetRing = new PacketRing(dataSize, packetsPerSec * desiredSpanSec * 2);
+        bbTotal = packetRing.getStorage().newReadView();
+        if (DEBUG) {
+            Log.d(TAG, "bitRate=" + bitRate + " desiredSpan=" + desiredSpanSec +
+                    ": dataSize=" + dataSize + " metaBufferCount=" + packetRing.getMetaLength());
+        }
+    }
+
+    public void setOverflowPolicy(PacketRing.OverflowPolicy overflowPolicy) {
+        packetRing.setOverflowPolicy(overflowPolicy);
+    }
+
+    public MediaFormat getFormat() {
+        return format;
+    }
+
+    void setFormat(MediaFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Starts the audio of a new run at sessionUsec, see {@link SessionTimeline}.  Never before
+     * the end of the audio already encoded, so the PTS keeps increasing.  Audio thread only.
+     */
+    void startRun(long sessionUsec) {
+        runStartUsec = Math.max(sessionUsec, timelineEndUsec);
+        runSamples = 0;
+    }
+
+    /**
+     * Returns the PTS of the next chunk of PCM to encode and advances the timeline past it.
+     * Audio thread only.
+     */
+    long advanceTimeline(int samples, int sampleRate) {
+        long ptsUsec = runStartUsec + runSamples * 1000000L / sampleRate;
+        runSamples += samples;
+        timelineEndUsec = runStartUsec + runSamples * 1000000L / sampleRate;
+        return ptsUsec;
+    }
+
+    /**
+     * Adds an encoded packet.  Audio thread only.
+     *
+     * @return False if the packet was dropped.
+     */
+    public boolean add(ByteBuffer byteBuffer, long ptsUsec) {
+        return packetRing.add(byteBuffer, PacketRing.FLAG_SYNC_FRAME, ptsUsec);
+    }
+
+    public PacketRing.Snapshot getSnapshot() {
+        return packetRing.snapshot();
+    }
+
+    /**
+     * Returns a snapshot whose packets won't be evicted until {@link #unpin()}.  For the
+     * muxer; one at a time.
+     */
+    public PacketRing.Snapshot pinSnapshot() {
+        return packetRing.pinSnapshot();
+    }
+
+    public void unpin() {
+        packetRing.unpin();
+    }
+
+    public boolean isStillValid(PacketRing.Snapshot snapshot) {
+        return packetRing.isStillValid(snapshot);
+    }
+
+    /**
+     * Returns the index of the oldest packet in the snapshot whose PTS is at or after
+     * {@code ptsUsec}, or -1.  O(log n).
+     */
+    public int getIndexAtOrAfter(PacketRing.Snapshot snapshot, long ptsUsec) {
+        long seq = packetRing.getSyncSeqAtOrBefore(snapshot, ptsUsec);
+        if (seq < 0) {
+            seq = snapshot.tailSeq;
+        } else if (packetRing.getPtsUsec(packetRing.slotOf(seq)) < ptsUsec) {
+            seq++;
+        }
+        return seq < snapshot.headSeq ? packetRing.slotOf(seq) : -1;
+    }
+
+    /**
+     * Returns the index of the next packet, or -1 at the end of the snapshot.
+     */
+    public int getNextIndex(int index, PacketRing.Snapshot snapshot) {
+        int next = packetRing.nextSlot(index);
+        if (snapshot.isEmpty() || next == packetRing.slotOf(snapshot.headSeq)) {
+            next = -1;
+        }
+        return next;
+    }
+
+    /**
+     * Like {@link JaehakEncoderBuffer#getChunk}: fills in info and returns the buffer holding
+     * the packet.  Never copies.
+     */
+    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+        info.flags = 0;
+        info.offset = packetRing.getStart(index);
+        info.presentationTimeUs = packetRing.getPtsUsec(index);
+        info.size = packetRing.getLength(index);
+        return bbTotal;
+    }
+
+    public SegmentTable getSegmentTable() {
+        return segmentTable;
+    }
+
+    /**
+     * Opens a segment at the current head.  Audio thread only.
+     */
+    public Segment openSegment() {
+        return segmentTable.open(packetRing);
+    }
+
+    /**
+     * Closes the open segment at the current head.  Audio thread only.
+     */
+    public Segment closeSegment() {
+        return segmentTable.close(packetRing);
+    }
+
+    /**
+     * Deletes the last segment by rewinding the head to where it began.  Audio thread only.
+     */
+    public Segment deleteLastSegment() {
+        Segment segment = segmentTable.removeLast();
+        if (segment != null) {
+            packetRing.truncateTo(segment.firstSeq);
+            if (segment.getPacketCount() > 0) {
+                // The next run takes the deleted one's place.
+                timelineEndUsec = Math.min(timelineEndUsec, segment.firstPtsUsec);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "deleteLastSegment() : " + segment);
+        return segment;
+    }
+}
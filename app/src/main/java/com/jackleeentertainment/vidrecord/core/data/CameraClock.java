@@ -0,0 +1,75 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+/**
+ * Puts camera frame timestamps on System.nanoTime()'s clock (CLOCK_MONOTONIC), the one the
+ * session timeline, the audio capture times and the encoder's rate control use.
+ * <p/>
+ * SurfaceTexture timestamps are usually on that clock, but the camera HAL may stamp from
+ * CLOCK_BOOTTIME (timestamp source REALTIME), which is ahead by the time spent in suspend, or
+ * from a clock of its own (UNKNOWN).  So the first frame is checked against the time it
+ * arrived: captured a plausible latency before, and timestamps are taken as they are.
+ * Otherwise each is mapped with a measured offset, the smallest arrival-minus-capture
+ * difference seen so far, which keeps the captured spacing of the frames.  If the mapped times
+ * fall too far behind arrival, the clocks have drifted and the offset is measured again.
+ * <p/>
+ * Frames without a timestamp get their arrival time.  The result always increases.
+ * <p/>
+ * One thread only (the render thread).  No Android dependencies.
+ */
+public class CameraClock {
+
+    // Longest plausible time from capture to arrival on the render thread.
+    static final long MAX_LATENCY_NS = 500000000L;
+
+    private boolean isChecked;
+    private boolean isSameClock;
+    private long offsetNs;
+    private long lastNs = Long.MIN_VALUE;
+
+    /**
+     * Returns the capture time of a frame on System.nanoTime()'s clock.
+     *
+     * @param cameraNs  SurfaceTexture.getTimestamp() of the frame.
+     * @param arrivalNs System.nanoTime() when the frame was latched.
+     */
+    public long toMonotonicNs(long cameraNs, long arrivalNs) {
+        long ns;
+        if (cameraNs == 0) {
+            ns = arrivalNs;
+        } else {
+            long lagNs = arrivalNs - cameraNs;
+            if (!isChecked) {
+                isChecked = true;
+                isSameClock = lagNs >= 0 && lagNs <= MAX_LATENCY_NS;
+                offsetNs = isSameClock ? 0 : lagNs;
+            } else if (!isSameClock && lagNs < offsetNs) {
+                offsetNs = lagNs;
+            }
+            ns = cameraNs + offsetNs;
+            if (!isSameClock && arrivalNs - ns > MAX_LATENCY_NS) {
+                offsetNs = lagNs;
+                ns = arrivalNs;
+            }
+        }
+        if (ns <= lastNs) {
+            ns = lastNs + 1;
+        }
+        lastNs = ns;
+        return ns;
+    }
+
+    /**
+     * Returns true if camera timestamps turned out to be on nanoTime's clock already.  False
+     * until the first timestamped frame.
+     */
+    public boolean isSameClock() {
+        return isSameClock;
+    }
+
+    /**
+     * Returns what's added to camera timestamps, in nanoseconds.
+     */
+    public long getOffsetNs() {
+        return offsetNs;
+    }
+}
@@ -0,0 +1,45 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PacketStorage} backed by a direct ByteBuffer.
+ * <p/>
+ * MediaCodec output buffers are direct too, so add() is a native memory copy, and
+ * MediaMuxer.writeSampleData() reads the data in place.  Note that on ART allocateDirect()
+ * memory is a non-movable array still charged to the app heap; it avoids the large-object
+ * moves and JNI array access of the heap store, but not the heap limit.
+ */
+public class DirectPacketStorage extends PacketStorage {
+
+    private final ByteBuffer mBuffer;
+
+    // Producer-private view, so that writes don't allocate a duplicate per packet.
+    private final ByteBuffer mWriteView;
+
+    public DirectPacketStorage(int capacity) {
+        this(ByteBuffer.allocateDirect(capacity));
+    }
+
+    DirectPacketStorage(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mWriteView = buffer.duplicate();
+    }
+
+    @Override
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    @Override
+    public void write(int offset, ByteBuffer src) {
+        mWriteView.limit(offset + src.remaining());
+        mWriteView.position(offset);
+        mWriteView.put(src);
+    }
+
+    @Override
+    public ByteBuffer newReadView() {
+        return mBuffer.duplicate();
+    }
+}
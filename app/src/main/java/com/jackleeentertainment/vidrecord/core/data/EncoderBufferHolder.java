@@ -7,4 +7,13 @@ public class EncoderBufferHolder {
 
    public static JaehakEncoderBuffer encBuffer ;
 
+   // Encoded audio, segmented like encBuffer.
+   public static AudioEncoderBuffer audioBuffer;
+
+   // Runs and pauses of the session; stamps both tracks.  Kept with the buffers it stamps.
+   public static SessionTimeline timeline;
+
+   // Appends closed segments of encBuffer to the output file.  Muxer thread only.
+   public static SegmentPersister persister;
+
 }
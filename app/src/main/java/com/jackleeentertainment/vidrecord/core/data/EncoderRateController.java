@@ -0,0 +1,158 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+/**
+ * Picks the video encoder's bit rate and frame rate while recording, so the recording stays
+ * inside the encoder ring and the GL thread keeps up.
+ * <p/>
+ * Bit rate: the ring was sized to hold the target span at the maximum bit rate, but encoders
+ * overshoot, especially on detailed or moving scenes.  Once a second the bytes still free are
+ * spread over the seconds the ring still has to fill (or, once it's rolling over, the whole
+ * ring over the target span), corrected by how far the encoder's measured output is from what
+ * it was asked for.  When that's below the current rate it's cut by {@link #HEADROOM} more,
+ * so the encoder's wandering doesn't overflow the ring.  Above {@link #PANIC_FILL} with the
+ * span not yet reached it drops straight to the minimum.
+ * <p/>
+ * Frame rate: when frames reach the encoder more than {@link #LATE_USEC} after they were
+ * captured, the GPU or the render thread is falling behind, and only every second (then
+ * fourth) frame is sent until it catches up.  Capture times must be on the clock of "now",
+ * System.nanoTime()'s; camera timestamps go through {@link CameraClock} first.  Where that
+ * maps them with a measured offset, latency counts from the camera's fastest delivery.
+ * <p/>
+ * The bit rate half is for the encoder thread, the frame rate half for the GL thread.  No
+ * Android dependencies.
+ */
+public class EncoderRateController {
+    // Leave room for the encoder's rate control to wander.
+    public static final float HEADROOM = 0.85f;
+    public static final float PANIC_FILL = 0.9f;
+    public static final long UPDATE_INTERVAL_USEC = 1000000;
+    // Rates that differ less than this from the current one aren't worth a codec call.
+    public static final float MIN_CHANGE = 0.1f;
+    public static final long MEASURE_WINDOW_USEC = 2000000;
+
+    public static final long LATE_USEC = 150000;
+    public static final int MAX_FRAME_DIVISOR = 4;
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final long targetSpanUsec;
+
+    // Encoder thread.
+    private int bitRate;
+    private boolean hasUpdated = false;
+    private long lastUpdateUsec;
+    private long windowStartPtsUsec = -1;
+    private long windowBytes;
+    private float overshoot = 1.0f;
+
+    // GL thread.
+    private int frameDivisor = 1;
+    private long frameCount;
+    private long latencyUsec;
+    private long lastFrameCheckUsec = -1;
+
+    /**
+     * @param targetSpanSec Seconds of video the ring must be able to hold.
+     */
+    public EncoderRateController(int minBitRate, int maxBitRate, int targetSpanSec) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.targetSpanUsec = targetSpanSec * 1000000L;
+        bitRate = maxBitRate;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getFrameDivisor() {
+        return frameDivisor;
+    }
+
+    /**
+     * Measures the encoder's output.  Encoder thread only.
+     *
+     * @param ptsUsec The packet's time on the session timeline.
+     */
+    public void onPacket(int size, long ptsUsec) {
+        if (windowStartPtsUsec < 0 || ptsUsec < windowStartPtsUsec) {
+            // First packet, or a segment was deleted and the timeline went back.
+            windowStartPtsUsec = ptsUsec;
+            windowBytes = 0;
+        }
+        windowBytes += size;
+        long spanUsec = ptsUsec - windowStartPtsUsec;
+        if (spanUsec >= MEASURE_WINDOW_USEC) {
+            float measured = windowBytes * 8 * 1000000f / spanUsec;
+            overshoot = Math.max(0.5f, Math.min(2.0f, measured / bitRate));
+            windowStartPtsUsec = ptsUsec;
+            windowBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the bit rate the encoder should switch to, or 0 to leave it.  Encoder thread
+     * only.
+     *
+     * @param nowUsec       Any monotonic clock.
+     * @param capacityBytes Size of the ring's data buffer.
+     * @param usedBytes     Bytes of it in use.
+     * @param bufferedUsec  Time spanned by the buffered packets.
+     */
+    public int update(long nowUsec, int capacityBytes, int usedBytes, long bufferedUsec) {
+        long remainingUsec = targetSpanUsec - bufferedUsec;
+        boolean isPanic = remainingUsec > 0 && usedBytes >= capacityBytes * PANIC_FILL;
+        if (!isPanic && hasUpdated && nowUsec - lastUpdateUsec < UPDATE_INTERVAL_USEC) {
+            return 0;
+        }
+        hasUpdated = true;
+        lastUpdateUsec = nowUsec;
+
+        long budget;
+        if (isPanic) {
+            budget = minBitRate;
+        } else if (remainingUsec >= UPDATE_INTERVAL_USEC) {
+            budget = (long) ((capacityBytes - usedBytes) * 8L * 1000000f / remainingUsec);
+        } else {
+            // Rolling over (or about to): keep the target span in the whole ring.
+            budget = (long) (capacityBytes * 8L * 1000000f / targetSpanUsec);
+        }
+        if (budget < bitRate) {
+            budget *= HEADROOM;
+        }
+        long target = (long) (budget / overshoot);
+        int newBitRate = (int) Math.max(minBitRate, Math.min(maxBitRate, target));
+        if (Math.abs(newBitRate - bitRate) < bitRate * MIN_CHANGE &&
+                !(isPanic && newBitRate < bitRate)) {
+            return 0;
+        }
+        // The measurement was against the old rate.
+        overshoot = 1.0f;
+        windowStartPtsUsec = -1;
+        bitRate = newBitRate;
+        return newBitRate;
+    }
+
+    /**
+     * Returns true if a camera frame should be sent to the encoder.  GL thread only.
+     *
+     * @param captureUsec When the frame was captured, on the same clock as nowUsec.  See
+     *                    {@link CameraClock}.
+     */
+    public boolean isFrameWanted(long captureUsec, long nowUsec) {
+        long latency = Math.max(0, nowUsec - captureUsec);
+        // Average over ~8 frames.
+        latencyUsec += (latency - latencyUsec) / 8;
+        if (lastFrameCheckUsec < 0) {
+            lastFrameCheckUsec = nowUsec;
+        } else if (nowUsec - lastFrameCheckUsec >= UPDATE_INTERVAL_USEC) {
+            lastFrameCheckUsec = nowUsec;
+            if (latencyUsec > LATE_USEC && frameDivisor < MAX_FRAME_DIVISOR) {
+                frameDivisor *= 2;
+            } else if (latencyUsec < LATE_USEC / 2 && frameDivisor > 1) {
+                frameDivisor /= 2;
+            }
+        }
+        return frameCount++ % frameDivisor == 0;
+    }
+}
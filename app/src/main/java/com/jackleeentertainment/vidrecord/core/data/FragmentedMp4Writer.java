@@ -0,0 +1,601 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes one H.264 track as a fragmented MP4 (ISO/IEC 14496-12) file.
+ * <p/>
+ * Unlike MediaMuxer, everything is written as it goes: the header (ftyp + moov without any
+ * samples) first, then one moof + mdat pair per {@link #flushFragment()}, usually once per
+ * GOP.  A file cut short by a crash or a full disk is still playable up to its last complete
+ * fragment, and more fragments can be appended to it at any time.  {@link #finish()} adds an
+ * mfra random-access index, which players use for seeking but don't require.
+ * <p/>
+ * Samples come in as MediaCodec produces them, Annex B with start codes, and are stored with
+ * 4-byte NAL length prefixes as MP4 requires.  Fragments must start with a sync frame.
+ * <p/>
+ * No Android dependencies, so it can be exercised on a plain JVM.  Not thread-safe.
+ */
+public class FragmentedMp4Writer {
+
+    // Media timescale, in ticks per second.  90 kHz is the usual choice for video.
+    public static final int TIMESCALE = 90000;
+
+    // Duration of the last sample of a fragment when there's no earlier one to copy.
+    private static final long DEFAULT_SAMPLE_DURATION_USEC = 1000000 / 30;
+
+    private static final int TRACK_ID = 1;
+
+    // trun sample_flags.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on no other
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends on others
+
+    private final OutputStream mOut;
+    private long mPosition;
+
+    // Pending fragment: sample data (length-prefixed NAL units) and per-sample meta-data.
+    private final Box mFragmentData = new Box();
+    private int mSampleCount;
+    private long[] mSamplePtsUsec = new long[64];
+    private int[] mSampleSize = new int[64];
+    private boolean[] mSampleIsSync = new boolean[64];
+
+    private int mSequenceNumber;
+    private long mFirstPtsUsec = -1;
+    private long mLastSampleDurationUsec = DEFAULT_SAMPLE_DURATION_USEC;
+
+    // Random-access index: decode time and moof offset of every fragment.
+    private long[] mFragmentTime = new long[16];
+    private long[] mFragmentOffset = new long[16];
+    private int mFragmentCount;
+
+    private boolean mIsFinished;
+
+    // Size of ftyp + moov.
+    private final long mHeaderSize;
+
+    /**
+     * Writes the file header.
+     *
+     * @param out    Destination.  Written to and flushed once per fragment; not closed.
+     * @param width  Video width, in pixels.
+     * @param height Video height, in pixels.
+     * @param sps    Sequence parameter set (MediaFormat "csd-0"), with or without start code.
+     * @param pps    Picture parameter set (MediaFormat "csd-1"), with or without start code.
+     */
+    public FragmentedMp4Writer(OutputStream out, int width, int height, ByteBuffer sps,
+                               ByteBuffer pps) throws IOException {
+        mOut = out;
+        byte[] spsNal = stripStartCode(sps);
+        byte[] ppsNal = stripStartCode(pps);
+        if (spsNal.length < 4 || ppsNal.length == 0) {
+            throw new IllegalArgumentException("Bad codec config: sps=" + spsNal.length +
+                    " pps=" + ppsNal.length);
+        }
+
+        Box header = new Box();
+        writeFtyp(header);
+        writeMoov(header, width, height, spsNal, ppsNal);
+        write(header);
+        mHeaderSize = mPosition;
+    }
+
+    /**
+     * Queues a sample for the current fragment.  The data is copied; the buffer isn't
+     * modified.
+     *
+     * @param buf     Buffer holding the sample, e.g. from JaehakEncoderBuffer.getChunk().
+     * @param offset  Offset of the sample in buf.
+     * @param size    Size of the sample, in bytes.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     * @param isSync  True if this is a sync frame.
+     */
+    public void addSample(ByteBuffer buf, int offset, int size, long ptsUsec, boolean isSync) {
+        if (mIsFinished) {
+            throw new IllegalStateException("already finished");
+        }
+        if (mSampleCount == 0 && !isSync) {
+            throw new IllegalArgumentException("fragment must start with a sync frame");
+        }
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+        }
+        if (mSampleCount == mSampleSize.length) {
+            int newLength = mSampleCount * 2;
+            mSamplePtsUsec = Arrays.copyOf(mSamplePtsUsec, newLength);
+            mSampleSize = Arrays.copyOf(mSampleSize, newLength);
+            mSampleIsSync = Arrays.copyOf(mSampleIsSync, newLength);
+        }
+        int start = mFragmentData.position();
+        appendLengthPrefixed(mFragmentData, buf, offset, size);
+        mSamplePtsUsec[mSampleCount] = ptsUsec;
+        mSampleSize[mSampleCount] = mFragmentData.position() - start;
+        mSampleIsSync[mSampleCount] = isSync;
+        mSampleCount++;
+    }
+
+    /**
+     * Returns the number of samples waiting for {@link #flushFragment()}.
+     */
+    public int getPendingSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Writes the queued samples as one moof + mdat fragment.  Does nothing if none are queued.
+     */
+    public void flushFragment() throws IOException {
+        if (mSampleCount == 0) {
+            return;
+        }
+        long baseDecodeTime = toTicks(mSamplePtsUsec[0] - mFirstPtsUsec);
+
+        Box moof = new Box();
+        int moofStart = moof.start("moof");
+        int mfhd = moof.startFull("mfhd", 0, 0);
+        moof.u32(++mSequenceNumber);
+        moof.end(mfhd);
+        int traf = moof.start("traf");
+        int tfhd = moof.startFull("tfhd", 0, 0x020000);     // default-base-is-moof
+        moof.u32(TRACK_ID);
+        moof.end(tfhd);
+        int tfdt = moof.startFull("tfdt", 1, 0);
+        moof.u64(baseDecodeTime);
+        moof.end(tfdt);
+        // data-offset, sample-duration, sample-size and sample-flags present
+        int trun = moof.startFull("trun", 0, 0x000701);
+        moof.u32(mSampleCount);
+        int dataOffsetPos = moof.position();
+        moof.u32(0);
+        long decodeTime = baseDecodeTime;
+        for (int i = 0; i < mSampleCount; i++) {
+            long endTicks;
+            if (i + 1 < mSampleCount) {
+                mLastSampleDurationUsec = mSamplePtsUsec[i + 1] - mSamplePtsUsec[i];
+                endTicks = toTicks(mSamplePtsUsec[i + 1] - mFirstPtsUsec);
+            } else {
+                // Next sample unknown yet; assume the frame rate holds.
+                endTicks = toTicks(mSamplePtsUsec[i] + mLastSampleDurationUsec - mFirstPtsUsec);
+            }
+            moof.u32((int) Math.max(0, endTicks - decodeTime));
+            moof.u32(mSampleSize[i]);
+            moof.u32(mSampleIsSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            decodeTime = Math.max(decodeTime, endTicks);
+        }
+        moof.end(trun);
+        moof.end(traf);
+        moof.end(moofStart);
+        // Sample data starts right after the mdat header.
+        moof.putU32(dataOffsetPos, moof.position() + 8);
+
+        if (mFragmentCount == mFragmentTime.length) {
+            mFragmentTime = Arrays.copyOf(mFragmentTime, mFragmentCount * 2);
+            mFragmentOffset = Arrays.copyOf(mFragmentOffset, mFragmentCount * 2);
+        }
+        mFragmentTime[mFragmentCount] = baseDecodeTime;
+        mFragmentOffset[mFragmentCount] = mPosition;
+        mFragmentCount++;
+
+        Box mdatHeader = new Box();
+        mdatHeader.u32(8 + mFragmentData.position());
+        mdatHeader.fourcc("mdat");
+
+        write(moof);
+        write(mdatHeader);
+        write(mFragmentData);
+        mOut.flush();
+
+        mFragmentData.reset();
+        mSampleCount = 0;
+    }
+
+    /**
+     * Flushes the last fragment and writes the random-access index.  The stream is left open.
+     */
+    public void finish() throws IOException {
+        if (mIsFinished) {
+            return;
+        }
+        flushFragment();
+        mIsFinished = true;
+
+        Box mfra = new Box();
+        int mfraStart = mfra.start("mfra");
+        int tfra = mfra.startFull("tfra", 1, 0);
+        mfra.u32(TRACK_ID);
+        mfra.u32(0);        // traf/trun/sample numbers are one byte each
+        mfra.u32(mFragmentCount);
+        for (int i = 0; i < mFragmentCount; i++) {
+            mfra.u64(mFragmentTime[i]);
+            mfra.u64(mFragmentOffset[i]);
+            mfra.u8(1);     // traf_number
+            mfra.u8(1);     // trun_number
+            mfra.u8(1);     // sample_number
+        }
+        mfra.end(tfra);
+        int mfro = mfra.startFull("mfro", 0, 0);
+        mfra.u32(mfra.position() + 4);      // size of the whole mfra
+        mfra.end(mfro);
+        mfra.end(mfraStart);
+        write(mfra);
+        mOut.flush();
+    }
+
+    /**
+     * Forgets everything written from {@code position} on, so that writing continues there:
+     * pending samples, fragments, and the mfra if finish() was called.  The caller truncates
+     * the output to match.  {@code position} must be a value of {@link #getPosition()} taken
+     * between fragments.
+     */
+    public void rewindTo(long position) {
+        if (position < mHeaderSize || position > mPosition) {
+            throw new IllegalArgumentException("Can't rewind to " + position + " of " + mPosition);
+        }
+        while (mFragmentCount > 0 && mFragmentOffset[mFragmentCount - 1] >= position) {
+            mFragmentCount--;
+        }
+        if (mFragmentCount == 0) {
+            mFirstPtsUsec = -1;
+        }
+        mFragmentData.reset();
+        mSampleCount = 0;
+        mPosition = position;
+        mIsFinished = false;
+    }
+
+    public boolean isFinished() {
+        return mIsFinished;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    private static long toTicks(long usec) {
+        return usec * TIMESCALE / 1000000;
+    }
+
+    private void write(Box box) throws IOException {
+        mOut.write(box.array(), 0, box.position());
+        mPosition += box.position();
+    }
+
+    private static void writeFtyp(Box box) {
+        int ftyp = box.start("ftyp");
+        box.fourcc("isom");
+        box.u32(0x200);
+        box.fourcc("isom");
+        box.fourcc("iso6");
+        box.fourcc("avc1");
+        box.fourcc("mp41");
+        box.end(ftyp);
+    }
+
+    private static void writeMoov(Box box, int width, int height, byte[] sps, byte[] pps) {
+        int moov = box.start("moov");
+
+        int mvhd = box.startFull("mvhd", 0, 0);
+        box.u32(0);                 // creation_time
+        box.u32(0);                 // modification_time
+        box.u32(1000);              // timescale
+        box.u32(0);                 // duration: unknown, see mvex
+        box.u32(0x00010000);        // rate 1.0
+        box.u16(0x0100);            // volume 1.0
+        box.zeros(2 + 8);
+        writeMatrix(box);
+        box.zeros(6 * 4);           // pre_defined
+        box.u32(TRACK_ID + 1);      // next_track_ID
+        box.end(mvhd);
+
+        int trak = box.start("trak");
+        int tkhd = box.startFull("tkhd", 0, 0x000003);     // enabled, in movie
+        box.u32(0);
+        box.u32(0);
+        box.u32(TRACK_ID);
+        box.u32(0);
+        box.u32(0);                 // duration
+        box.zeros(8);
+        box.u16(0);                 // layer
+        box.u16(0);                 // alternate_group
+        box.u16(0);                 // volume
+        box.u16(0);
+        writeMatrix(box);
+        box.u32(width << 16);
+        box.u32(height << 16);
+        box.end(tkhd);
+
+        int mdia = box.start("mdia");
+        int mdhd = box.startFull("mdhd", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(TIMESCALE);
+        box.u32(0);
+        box.u16(0x55c4);            // language "und"
+        box.u16(0);
+        box.end(mdhd);
+
+        int hdlr = box.startFull("hdlr", 0, 0);
+        box.u32(0);
+        box.fourcc("vide");
+        box.zeros(3 * 4);
+        box.bytes("VideoHandler\0".getBytes());
+        box.end(hdlr);
+
+        int minf = box.start("minf");
+        int vmhd = box.startFull("vmhd", 0, 1);
+        box.zeros(2 + 3 * 2);       // graphicsmode, opcolor
+        box.end(vmhd);
+        int dinf = box.start("dinf");
+        int dref = box.startFull("dref", 0, 0);
+        box.u32(1);
+        int url = box.startFull("url ", 0, 1);             // media is in this file
+        box.end(url);
+        box.end(dref);
+        box.end(dinf);
+
+        int stbl = box.start("stbl");
+        int stsd = box.startFull("stsd", 0, 0);
+        box.u32(1);
+        int avc1 = box.start("avc1");
+        box.zeros(6);
+        box.u16(1);                 // data_reference_index
+        box.zeros(2 + 2 + 3 * 4);
+        box.u16(width);
+        box.u16(height);
+        box.u32(0x00480000);        // 72 dpi
+        box.u32(0x00480000);
+        box.u32(0);
+        box.u16(1);                 // frame_count
+        box.zeros(32);              // compressorname
+        box.u16(0x0018);            // depth
+        box.u16(0xffff);            // pre_defined = -1
+        int avcC = box.start("avcC");
+        box.u8(1);                  // configurationVersion
+        box.u8(sps[1]);             // AVCProfileIndication
+        box.u8(sps[2]);             // profile_compatibility
+        box.u8(sps[3]);             // AVCLevelIndication
+        box.u8(0xff);               // lengthSizeMinusOne = 3
+        box.u8(0xe1);               // one SPS
+        box.u16(sps.length);
+        box.bytes(sps);
+        box.u8(1);                  // one PPS
+        box.u16(pps.length);
+        box.bytes(pps);
+        box.end(avcC);
+        box.end(avc1);
+        box.end(stsd);
+        // No samples in the moov; they're all in fragments.
+        int stts = box.startFull("stts", 0, 0);
+        box.u32(0);
+        box.end(stts);
+        int stsc = box.startFull("stsc", 0, 0);
+        box.u32(0);
+        box.end(stsc);
+        int stsz = box.startFull("stsz", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.end(stsz);
+        int stco = box.startFull("stco", 0, 0);
+        box.u32(0);
+        box.end(stco);
+        box.end(stbl);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+
+        int mvex = box.start("mvex");
+        int trex = box.startFull("trex", 0, 0);
+        box.u32(TRACK_ID);
+        box.u32(1);                 // default_sample_description_index
+        box.u32(0);
+        box.u32(0);
+        box.u32(0);
+        box.end(trex);
+        box.end(mvex);
+
+        box.end(moov);
+    }
+
+    private static void writeMatrix(Box box) {
+        box.u32(0x00010000);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0x00010000);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0x40000000);
+    }
+
+    /**
+     * Returns the NAL unit in buf (position to limit), without a leading start code.
+     */
+    static byte[] stripStartCode(ByteBuffer buf) {
+        ByteBuffer dup = buf.duplicate();
+        int start = dup.position();
+        int end = dup.limit();
+        if (isStartCodeAt(dup, start, end)) {
+            start = skipStartCode(dup, start);
+        }
+        byte[] bytes = new byte[end - start];
+        dup.position(start);
+        dup.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Appends the Annex B NAL units in buf[offset, offset + size) to box, each prefixed with
+     * its 4-byte length instead of a start code.  Data with no start code at the front is
+     * taken as one NAL unit.
+     */
+    static void appendLengthPrefixed(Box box, ByteBuffer buf, int offset, int size) {
+        final int end = offset + size;
+        int nalStart = offset;
+        if (isStartCodeAt(buf, offset, end)) {
+            nalStart = skipStartCode(buf, offset);
+        }
+        while (nalStart < end) {
+            int next = findStartCode(buf, nalStart, end);
+            int nalEnd = (next < 0) ? end : next;
+            // Zero bytes before a start code are trailing_zero_8bits, not NAL data.
+            while (nalEnd > nalStart && buf.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                box.u32(nalEnd - nalStart);
+                box.bytes(buf, nalStart, nalEnd - nalStart);
+            }
+            if (next < 0) {
+                break;
+            }
+            nalStart = skipStartCode(buf, next);
+        }
+    }
+
+    /**
+     * Returns the offset of the next 00 00 01 at or after from, or -1.
+     */
+    private static int findStartCode(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;         // none of the next three positions can start a code
+                continue;
+            }
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if a 3- or 4-byte start code begins at {@code at}.
+     */
+    private static boolean isStartCodeAt(ByteBuffer buf, int at, int end) {
+        int i = at;
+        while (i < end && buf.get(i) == 0) {
+            i++;
+        }
+        return i - at >= 2 && i < end && buf.get(i) == 1;
+    }
+
+    private static int skipStartCode(ByteBuffer buf, int at) {
+        while (buf.get(at) == 0) {
+            at++;
+        }
+        return at + 1;      // the 01
+    }
+
+    /**
+     * Growable big-endian byte buffer with ISO-BMFF box helpers.
+     */
+    static final class Box {
+        private byte[] mBytes = new byte[1024];
+        private int mPosition;
+
+        int position() {
+            return mPosition;
+        }
+
+        byte[] array() {
+            return mBytes;
+        }
+
+        void reset() {
+            mPosition = 0;
+        }
+
+        private void ensure(int more) {
+            if (mPosition + more > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mPosition + more));
+            }
+        }
+
+        /**
+         * Starts a box; returns its offset, for {@link #end(int)}.
+         */
+        int start(String type) {
+            int at = mPosition;
+            u32(0);
+            fourcc(type);
+            return at;
+        }
+
+        int startFull(String type, int version, int flags) {
+            int at = start(type);
+            u32((version << 24) | flags);
+            return at;
+        }
+
+        /**
+         * Fills in the size of the box started at {@code at}.
+         */
+        void end(int at) {
+            putU32(at, mPosition - at);
+        }
+
+        void putU32(int at, int value) {
+            mBytes[at] = (byte) (value >>> 24);
+            mBytes[at + 1] = (byte) (value >>> 16);
+            mBytes[at + 2] = (byte) (value >>> 8);
+            mBytes[at + 3] = (byte) value;
+        }
+
+        void u8(int value) {
+            ensure(1);
+            mBytes[mPosition++] = (byte) value;
+        }
+
+        void u16(int value) {
+            ensure(2);
+            mBytes[mPosition++] = (byte) (value >>> 8);
+            mBytes[mPosition++] = (byte) value;
+        }
+
+        void u32(int value) {
+            ensure(4);
+            putU32(mPosition, value);
+            mPosition += 4;
+        }
+
+        void u64(long value) {
+            u32((int) (value >>> 32));
+            u32((int) value);
+        }
+
+        void fourcc(String type) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                mBytes[mPosition++] = (byte) type.charAt(i);
+            }
+        }
+
+        void zeros(int count) {
+            ensure(count);
+            Arrays.fill(mBytes, mPosition, mPosition + count, (byte) 0);
+            mPosition += count;
+        }
+
+        void bytes(byte[] src) {
+            ensure(src.length);
+            System.arraycopy(src, 0, mBytes, mPosition, src.length);
+            mPosition += src.length;
+        }
+
+        void bytes(ByteBuffer src, int offset, int length) {
+            ensure(length);
+            ByteBuffer dup = src.duplicate();
+            dup.limit(offset + length);
+            dup.position(offset);
+            dup.get(mBytes, mPosition, length);
+            mPosition += length;
+        }
+    }
+}
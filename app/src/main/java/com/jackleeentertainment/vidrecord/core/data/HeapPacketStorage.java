@@ -0,0 +1,33 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PacketStorage} backed by a byte[] on the Java heap.
+ * <p/>
+ * MediaMuxer reaches the array through JNI without copying, but a 20+ MB array is a large
+ * object for the GC on small-heap devices.
+ */
+public class HeapPacketStorage extends PacketStorage {
+
+    private final byte[] mData;
+
+    public HeapPacketStorage(int capacity) {
+        mData = new byte[capacity];
+    }
+
+    @Override
+    public int capacity() {
+        return mData.length;
+    }
+
+    @Override
+    public void write(int offset, ByteBuffer src) {
+        src.get(mData, offset, src.remaining());
+    }
+
+    @Override
+    public ByteBuffer newReadView() {
+        return ByteBuffer.wrap(mData);
+    }
+}
@@ -1,62 +0,0 @@
-package com.jackleeentertainment.vidrecord.core.data;
-
-/**
- * Created by Jacklee on 16. 4. 17..
- */
-public class JStampAbsolute {
-
-    static int FrameNum = 0;
-
-    public static long getTimeStamp(){
-        FrameNum++;
-        return  33300*   FrameNum;
-    }
-
-
-
-
-    /*
-
-    D/JTimeStamp: input : 107053508428
-    D/JTimeStamp: SystemNow 1460902385365
-    D/JTimeStamp: stamp : 107053404137
-    D/JTimeStamp: input : 107053541768
-    D/JTimeStamp: SystemNow 1460902385399
-    D/JTimeStamp: stamp : 107053437477
-    D/JTimeStamp: input : 107053574478
-    D/JTimeStamp: SystemNow 1460902385433
-    D/JTimeStamp: stamp : 107053470187
-    D/JTimeStamp: input : 107053608118
-    D/JTimeStamp: SystemNow 1460902385466
-    D/JTimeStamp: stamp : 107053503827
-    D/JTimeStamp: input : 107053641467
-    D/JTimeStamp: SystemNow 1460902385500
-    D/JTimeStamp: stamp : 107053537176
-    D/JTimeStamp: input : 107053676326
-    D/JTimeStamp: SystemNow 1460902385533
-    D/JTimeStamp: stamp : 107053572035
-    D/JTimeStamp: input : 107053708405
-    D/JTimeStamp: SystemNow 1460902385566
-    D/JTimeStamp: stamp : 107053604114
-    D/JTimeStamp: input : 107053741862
-    D/JTimeStamp: SystemNow 1460902385600
-    D/JTimeStamp: stamp : 107053637571
-    D/JTimeStamp: input : 107053775739
-    D/JTimeStamp: SystemNow 1460902385634
-    D/JTimeStamp: stamp : 107053671448
-    D/JTimeStamp: input : 107053809030
-    D/JTimeStamp: SystemNow 1460902385667
-    D/JTimeStamp: stamp : 107053704739
-    D/JTimeStamp: input : 107053842423
-    D/JTimeStamp: SystemNow 1460902385701
-    D/JTimeStamp: stamp : 107053738132
-    D/JTimeStamp: input : 107053876542
-    D/JTimeStamp: SystemNow 1460902385734
-    D/JTimeStamp: stamp : 107053772251
-    D/JTimeStamp: input : 107053909819
-    D/JTimeStamp: SystemNow 1460902385768
-    D/JTimeStamp: stamp : 107053805528
-
-     */
-
-}
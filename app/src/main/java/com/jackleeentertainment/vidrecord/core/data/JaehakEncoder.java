@@ -16,19 +16,25 @@
 
 package com.jackleeentertainment.vidrecord.core.data;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
 import com.jackleeentertainment.vidrecord.core.GlobalSetting;
+import com.jackleeentertainment.vidrecord.core.JTrace;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
@@ -49,16 +55,29 @@ import java.nio.ByteBuffer;
  * <p/>
  * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
  * and then go back to what we were doing.
+ * <p/>
+ * Audio is captured and encoded by an {@link AudioEncoder} into its own buffer, with the same
+ * segments, and muxed in alongside the video.
  */
 public class JaehakEncoder {
     private static final String TAG = "JaehakEncoder";
-    private static final boolean VERBOSE = true;
+    private static final boolean DEBUG = JTrace.ENCODER >= JTrace.DEBUG;
+    private static final boolean VERBOSE = JTrace.ENCODER >= JTrace.VERBOSE;  // per packet/frame
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
 
     private EncoderThread mEncoderThread;
+    // Captures and encodes audio on its own thread, or null for video only.
+    private AudioEncoder mAudioEncoder;
+    // Retunes the bit rate and thins out frames, or null for a fixed rate.
+    private final EncoderRateController mRateController;
+    // Writes .mp4 files from pinned buffer snapshots, so the encoder thread keeps draining.
+    private HandlerThread mMuxerThread;
     private Surface surfaceInput;
     private MediaCodec mediaCodec;
+    // Size the encoder was configured with.
+    private final int mWidth;
+    private final int mHeight;
 
     /**
      * Callback function definitions.  JaehakEncoder caller must provide one.
@@ -78,6 +97,22 @@ public class JaehakEncoder {
          * @param totalTimeMsec Total length, in milliseconds, of buffered video.
          */
         void bufferStatus(long totalTimeMsec);
+
+        /**
+         * Called when the buffer is full and the overflow policy is
+         * {@link PacketRing.OverflowPolicy#STOP_RECORDING}.  Called once per overflow; encoded
+         * frames are being dropped until space is freed.  With DROP_OLDEST_GOP, packets that
+         * can't be placed (a pinned tail, or a single GOP that doesn't fit) are dropped up to
+         * the next sync frame and recording goes on.
+         */
+        void bufferFull();
+
+        /**
+         * Called after {@link #deleteLastSegment()} has removed a segment from the buffer.
+         *
+         * @param segment The deleted segment.
+         */
+        void segmentDeleted(Segment segment);
     }
 
     /**
@@ -88,9 +123,11 @@ public class JaehakEncoder {
      * @param bitRate        Target bit rate, in bits.
      * @param frameRate      Expected frame rate.
      * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     *                       With mapped storage, at least GlobalSetting.intMappedBufferSpanSec.
+     * @param spillFile      File backing the buffer when it uses mapped storage.
      */
     public JaehakEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
-                         Callback cb) throws IOException {
+                         File spillFile, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -104,11 +141,30 @@ public class JaehakEncoder {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
+        mWidth = width;
+        mHeight = height;
 //        JaehakEncoderBuffer encBuffer = new JaehakEncoderBuffer(bitRate, frameRate,
 //                desiredSpanSec);
         if (EncoderBufferHolder.encBuffer==null) {
+            if (GlobalSetting.encoderBufferStorage == PacketStorage.Type.MAPPED) {
+                desiredSpanSec = Math.max(desiredSpanSec, GlobalSetting.intMappedBufferSpanSec);
+            }
             EncoderBufferHolder.encBuffer = new JaehakEncoderBuffer(bitRate, frameRate,
-                    desiredSpanSec);
+                    desiredSpanSec, GlobalSetting.isPowerOfTwoEncoderBuffer,
+                    GlobalSetting.encoderBufferStorage, spillFile);
+        }
+        EncoderBufferHolder.encBuffer.setOverflowPolicy(GlobalSetting.encoderBufferOverflowPolicy);
+        if (GlobalSetting.isAdaptiveBitRate &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // The span the ring holds at the full bit rate; mapped storage makes it longer.
+            int spanSec = (int) (EncoderBufferHolder.encBuffer.getDataCapacity() * 8L / bitRate);
+            mRateController = new EncoderRateController(
+                    Math.min(GlobalSetting.VIDEO_MIN_BIT_RATE, bitRate), bitRate, spanSec);
+        } else {
+            mRateController = null;
+        }
+        if (EncoderBufferHolder.timeline == null) {
+            EncoderBufferHolder.timeline = new SessionTimeline();
         }
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -119,20 +175,66 @@ public class JaehakEncoder {
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + format);
+        if (DEBUG) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+
+        mMuxerThread = new HandlerThread("JaehakMuxer");
+        mMuxerThread.start();
+        Handler muxerHandler = new Handler(mMuxerThread.getLooper());
+
+        // In callback mode the codec hands us each output buffer on the encoder thread as
+        // soon as it's ready.  The callback must be set before configure(), so the thread
+        // has to be running first.  Needs the Handler overload of setCallback() (API 23);
+        // the API 21 one delivers on the thread that created the codec, i.e. the UI thread.
+        boolean isAsync = GlobalSetting.isAsyncEncoder &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        if (isAsync) {
+            mEncoderThread = new EncoderThread(mediaCodec, muxerHandler, mRateController, cb);
+            mEncoderThread.start();
+            mEncoderThread.waitUntilReady();
+            mEncoderThread.setCodecCallback();
+        }
+
         mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         surfaceInput = mediaCodec.createInputSurface();
         mediaCodec.start();
 
-        // Start the encoder thread last.  That way we're sure it can see all of the state
-        // we've initialized.
-        mEncoderThread = new EncoderThread(mediaCodec,   cb);
-        mEncoderThread.start();
-        mEncoderThread.waitUntilReady();
+        if (!isAsync) {
+            // Start the encoder thread last.  That way we're sure it can see all of the state
+            // we've initialized.
+            mEncoderThread = new EncoderThread(mediaCodec, muxerHandler, mRateController, cb);
+            mEncoderThread.start();
+            mEncoderThread.waitUntilReady();
+        }
+        if (DEBUG) Log.d(TAG, "encoder output mode: " + (isAsync ? "callback" : "polled"));
+
+        if (GlobalSetting.isAudioRecording) {
+            startAudio(desiredSpanSec);
+        }
+    }
+
+    /**
+     * Starts audio capture into EncoderBufferHolder.audioBuffer.  Without a microphone (or
+     * the permission for it) we log and record video only.
+     */
+    private void startAudio(int desiredSpanSec) {
+        if (EncoderBufferHolder.audioBuffer == null) {
+            EncoderBufferHolder.audioBuffer = new AudioEncoderBuffer(
+                    GlobalSetting.AUDIO_BIT_RATE,
+                    AudioEncoder.getPacketsPerSec(GlobalSetting.AUDIO_SAMPLE_RATE),
+                    desiredSpanSec);
+        }
+        EncoderBufferHolder.audioBuffer.setOverflowPolicy(
+                GlobalSetting.encoderBufferOverflowPolicy);
+        try {
+            mAudioEncoder = new AudioEncoder(GlobalSetting.AUDIO_SAMPLE_RATE,
+                    GlobalSetting.AUDIO_CHANNEL_COUNT, GlobalSetting.AUDIO_BIT_RATE);
+        } catch (IOException ioe) {
+            Log.w(TAG, "audio unavailable, recording video only", ioe);
+        }
     }
 
     /**
@@ -142,13 +244,27 @@ public class JaehakEncoder {
         return surfaceInput;
     }
 
+    /**
+     * Returns the width of the encoded video, in pixels, as passed to the constructor.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the encoded video, in pixels, as passed to the constructor.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
     /**
      * Shuts down the encoder thread, and releases encoder resources.
      * <p/>
      * Does not return until the encoder thread has stopped.
      */
     public void shutdown() {
-        if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (DEBUG) Log.d(TAG, "releasing encoder objects");
 
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
@@ -163,6 +279,13 @@ public class JaehakEncoder {
             mediaCodec.release();
             mediaCodec = null;
         }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.shutdown();
+            mAudioEncoder = null;
+        }
+
+        // Let a save in progress finish; it only needs the buffer.
+        mMuxerThread.quitSafely();
     }
 
     /**
@@ -180,8 +303,7 @@ public class JaehakEncoder {
      * indefinitely.
      */
     public void frameAvailableSoon() {
-        Log.d(TAG, "frameAvailableSoon() - 1");
-
+        if (VERBOSE) Log.v(TAG, "frameAvailableSoon()");
         if (Grab.arlGrabbedBbEncodedData.size() <= (GlobalSetting.DESIRED_PREVIEW_FPS * GlobalSetting.intMaxRecordSec)) {
             Handler handler = mEncoderThread.getHandler();
             handler.sendMessage(handler.obtainMessage(
@@ -191,14 +313,101 @@ public class JaehakEncoder {
 
     }
 
+    /**
+     * Starts a recorded segment, and a run of the session timeline at the current time.  Call
+     * before sending the segment's first frame; the segment begins with the first packet the
+     * encoder outputs after frames already sent.  Call from the thread that sends frames.
+     */
+    public void openSegment() {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_OPEN_SEGMENT));
+        if (mAudioEncoder != null) {
+            mAudioEncoder.openSegment();
+        }
+        // After the audio op is queued: the audio thread applies it before encoding the run.
+        EncoderBufferHolder.timeline.begin(System.nanoTime() / 1000,
+                GlobalSetting.AudioSpeed.fPlaySpeed);
+    }
+
+    /**
+     * Ends the open segment after the packets of the frames sent so far, and the timeline's
+     * run at the current time.  Call from the thread that sends frames.
+     */
+    public void closeSegment() {
+        EncoderBufferHolder.timeline.end(System.nanoTime() / 1000);
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_CLOSE_SEGMENT));
+        if (mAudioEncoder != null) {
+            mAudioEncoder.closeSegment();
+        }
+    }
+
+    /**
+     * Deletes the last segment from the video and audio buffers, and its run from the
+     * timeline.  The callback is notified with the segment.  Call from the thread that sends
+     * frames, so it's ordered after that segment's {@link #closeSegment()}.
+     */
+    public void deleteLastSegment() {
+        EncoderBufferHolder.timeline.removeLast();
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_DELETE_LAST_SEGMENT));
+        if (mAudioEncoder != null) {
+            mAudioEncoder.deleteLastSegment();
+        }
+    }
+
+    /**
+     * Returns true if a camera frame captured at timestampNs belongs in the open segment: it
+     * was captured after the record button was pressed.
+     *
+     * @param timestampNs Capture time on System.nanoTime()'s clock, see {@link CameraClock}.
+     */
+    public boolean isFrameInSegment(long timestampNs) {
+        SessionTimeline.Run run = EncoderBufferHolder.timeline.getLast();
+        return run != null && run.isOpen() && run.contains(timestampNs / 1000);
+    }
+
+    /**
+     * Returns true if the camera frame captured at timestampNs should be sent to the encoder.
+     * False for some frames while drawing is falling behind.  GL thread; call once per frame
+     * that could be sent.
+     *
+     * @param timestampNs Capture time on System.nanoTime()'s clock, see {@link CameraClock}.
+     */
+    public boolean isFrameWanted(long timestampNs) {
+        return mRateController == null ||
+                mRateController.isFrameWanted(timestampNs / 1000, System.nanoTime() / 1000);
+    }
+
+    /**
+     * Appends each segment to {@code outputFile} as a fragmented .mp4 as soon as it's closed,
+     * in the background.  A later {@link #saveVideo(File)} to the same file then only writes
+     * the index.  The file is kept across encoder restarts, see EncoderBufferHolder.
+     * <p/>
+     * Refused while audio is being recorded: FragmentedMp4Writer writes a video track only, so
+     * the audio would be lost.  saveVideo() muxes the snapshot with MediaMuxer instead.
+     */
+    public void persistSegmentsTo(File outputFile) {
+        if (mAudioEncoder != null) {
+            Log.w(TAG, "recording audio, not persisting segments to " + outputFile);
+            return;
+        }
+        mEncoderThread.persistFile = outputFile;
+    }
+
     /**
      * Initiates saving the currently-buffered frames to the specified output file.  The
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p/>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file is written on the muxer thread from a pinned snapshot of the buffer, so the
+     * encoder keeps draining and frames can keep being submitted.  While the save runs the
+     * buffer can't evict, so frames that don't fit are dropped.  One save at a time.
+     * <p/>
+     * If segments are being persisted to outputFile, the save just finishes that file.
      */
     public void saveVideo(File outputFile) {
         Handler handler = mEncoderThread.getHandler();
@@ -221,7 +430,6 @@ public class JaehakEncoder {
 
 
     public ByteBuffer getEncoderThreadCircularEncoderByteBufferWithIndex() {
-        Log.d(TAG, "getEncoderThreadCircularEncoderByteBufferWithIndex()");
         return mEncoderThread.getCircularEncoderByteBufferWithIndex(
                 getEncoderThreadCircularEncoderBufferIndex()
 
@@ -235,9 +443,10 @@ public class JaehakEncoder {
      * arrives at the encoder, because the other thread is sending frames directly to the
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
-     * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * calling app wake us.  It's very useful to have all of the buffer writes local to
+     * this thread -- avoids synchronization -- so it's best to sleep on an object and do
+     * something appropriate when awakened.  File muxing only reads a pinned snapshot of the
+     * buffer, so it runs on a separate muxer thread.
      * <p/>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -248,19 +457,31 @@ public class JaehakEncoder {
         private MediaCodec mediaCodec;
         private MediaCodec.BufferInfo mediaCodecBufferInfo;
         private MediaFormat videoFormat;
-        private MediaFormat audioFormat;
 
         private EncoderHandler encoderHandler;
         private Callback mCallback;
 
         private volatile boolean isReady = false;
+        // Output arrives through MediaCodec.Callback; dequeueOutputBuffer() is off-limits.
+        private boolean isAsync = false;
+        private boolean isBufferFullReported = false;
         private int mFrameNum;
         private final Object mLock = new Object();
 
+        private final Handler muxerHandler;
+        private final EncoderRateController rateController;
+        private volatile boolean isSaveInProgress = false;
+        // Where closed segments are appended, or null.
+        volatile File persistFile;
+
         public EncoderThread(
                 MediaCodec mediaCodec,
+                Handler muxerHandler,
+                EncoderRateController rateController,
                 Callback callback) {
             this.mediaCodec = mediaCodec;
+            this.muxerHandler = muxerHandler;
+            this.rateController = rateController;
             mCallback = callback;
             mediaCodecBufferInfo = new MediaCodec.BufferInfo();
         }
@@ -317,10 +538,25 @@ public class JaehakEncoder {
             return encoderHandler;
         }
 
+        /**
+         * Switches the codec to callback mode, with callbacks on this thread.  Call after
+         * waitUntilReady() and before the codec is configured.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        void setCodecCallback() {
+            isAsync = true;
+            mediaCodec.setCallback(new CodecCallback(this), getHandler());
+        }
+
         /**
          * Drains all pending output from the decoder, and adds it to the circular buffer.
+         * <p/>
+         * Does nothing in callback mode, where output is added as soon as it's produced.
          */
         public void drainEncoder() {
+            if (isAsync) {
+                return;
+            }
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
             /**
@@ -367,7 +603,7 @@ public class JaehakEncoder {
                     // rather than extract the codec-specific data and reconstruct a new
                     // MediaFormat later, we just grab it here and keep it around.
                     videoFormat = mediaCodec.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + videoFormat);
+                    if (DEBUG) Log.d(TAG, "encoder output format changed: " + videoFormat);
 
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
@@ -381,46 +617,7 @@ public class JaehakEncoder {
                                 " was null");
                     }
 
-                    if ((mediaCodecBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out when we got the
-                        // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
-                        // a single big blob -- it wants separate csd-0/csd-1 chunks --
-                        // so simply saving this off won't work.
-                        if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        mediaCodecBufferInfo.size = 0;
-                    }
-
-                    if (mediaCodecBufferInfo.size != 0) {
-                        Log.d(TAG, "mediaCodecBufferInfo.offset, mediaCodecBufferInfo.size " + String.valueOf(mediaCodecBufferInfo.offset) + "," + String.valueOf(mediaCodecBufferInfo.size));
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-
-                        // The start-offset of the data in the buffer.
-                        bbEncodedData.position(mediaCodecBufferInfo.offset);
-                        // mediaCodecBufferInfo.offset : 0
-
-                        //Sets the limit of this buffer.
-                        bbEncodedData.limit(mediaCodecBufferInfo.offset + mediaCodecBufferInfo.size);
-                        // mediaCodecBufferInfo.offset : 0 ; mediaCodecBufferInfo.size 54243, 66419, 87404, etc random
-
-                        /**************************************************************************************************
-                         * JHE - GRAP bbEncodedData
-                         *************************************************************************************************/
-
-//                        /**
-//                         * Adds a new encoded data packet to the buffer.
-//                         * Adds a new encoded data packet to the buffer.
-//                         */
-                        EncoderBufferHolder.encBuffer.add(
-                                bbEncodedData, //The data.
-                                mediaCodecBufferInfo.flags, // MediaCodec.BufferInfo flags.
-                                JStampAbsolute.getTimeStamp()//long : Presentation time stamp, in microseconds.  JTimeStamp.getRelativeStamp(mediaCodecBufferInfo.presentationTimeUs)
-                        );
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mediaCodecBufferInfo.size + " bytes to muxer, ts=" + ""
-                            );
-                        }
-                    }
+                    addEncodedData(bbEncodedData, mediaCodecBufferInfo);
 
                     /**
                      * If you are done with a buffer, use this call to return the buffer to the codec
@@ -451,15 +648,105 @@ public class JaehakEncoder {
             }
         }
 
+        /**
+         * Output buffer callback, on the encoder thread.
+         */
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            ByteBuffer bbEncodedData = mediaCodec.getOutputBuffer(index);
+            if (bbEncodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+            addEncodedData(bbEncodedData, info);
+            mediaCodec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Log.w(TAG, "reached end of stream unexpectedly");
+            }
+        }
+
+        /**
+         * Output format callback, on the encoder thread.  See drainEncoder().
+         */
+        void onOutputFormatChanged(MediaFormat format) {
+            videoFormat = format;
+            if (DEBUG) Log.d(TAG, "encoder output format changed: " + videoFormat);
+        }
+
+        /**
+         * Adds one encoder output buffer to the circular buffer.  Shared by the polled and
+         * callback modes.
+         */
+        private void addEncodedData(ByteBuffer bbEncodedData, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // The codec config data was pulled out when we got the
+                // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
+                // a single big blob -- it wants separate csd-0/csd-1 chunks --
+                // so simply saving this off won't work.
+                if (DEBUG) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                info.size = 0;
+            }
+
+            if (info.size != 0) {
+                // adjust the ByteBuffer values to match BufferInfo (not needed?)
+
+                // The start-offset of the data in the buffer.
+                bbEncodedData.position(info.offset);
+                // info.offset : 0
+
+                //Sets the limit of this buffer.
+                bbEncodedData.limit(info.offset + info.size);
+                // info.offset : 0 ; info.size 54243, 66419, 87404, etc random
+
+                /**************************************************************************************************
+                 * JHE - GRAP bbEncodedData
+                 *************************************************************************************************/
+
+                // Capture time (SurfaceTexture, via CameraClock) on the session timeline.
+                long ptsUsec = EncoderBufferHolder.timeline.toSessionUsec(info.presentationTimeUs);
+                boolean isAdded = EncoderBufferHolder.encBuffer.add(
+                        bbEncodedData, //The data.
+                        info.flags, // MediaCodec.BufferInfo flags.
+                        ptsUsec
+                );
+                if (rateController != null) {
+                    rateController.onPacket(info.size, ptsUsec);
+                }
+                if (!isAdded && !isBufferFullReported) {
+                    isBufferFullReported = true;
+                    if (EncoderBufferHolder.encBuffer.getOverflowPolicy() ==
+                            PacketRing.OverflowPolicy.STOP_RECORDING) {
+                        Log.w(TAG, "encoder buffer full, dropping frames");
+                        mCallback.bufferFull();
+                    } else {
+                        // A pin (a save or persisted fragment) or one huge GOP holds the
+                        // tail.  Keep recording; the ring drops the rest of this GOP, so get
+                        // the next one started.
+                        if (DEBUG) Log.d(TAG, "encoder buffer blocked, dropping to sync frame");
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                            requestSyncFrame();
+                        }
+                    }
+                } else if (isAdded) {
+                    isBufferFullReported = false;
+                }
+
+                if (VERBOSE) {
+                    Log.v(TAG, "sent " + info.size + " bytes to buffer, offset="
+                            + info.offset);
+                }
+            }
+        }
+
         /**
          * Drains the encoder output.
          * <p/>
          * See notes for {@link JaehakEncoder#frameAvailableSoon()}.
          */
         void frameAvailableSoon() {
-            Log.d(TAG, "frameAvailableSoon() - 2");
-            if (VERBOSE) Log.d(TAG, "frameAvailableSoon() - drainEncoder()");
+            if (VERBOSE) Log.v(TAG, "frameAvailableSoon() - drainEncoder()");
             drainEncoder();
+            adjustBitRate();
 
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
@@ -467,6 +754,140 @@ public class JaehakEncoder {
             }
         }
 
+        /**
+         * Retunes the codec if the rate controller asks for it.  Takes effect within a frame or
+         * two, without a new sync frame.
+         */
+        private void adjustBitRate() {
+            if (rateController == null) {
+                return;
+            }
+            JaehakEncoderBuffer encBuffer = EncoderBufferHolder.encBuffer;
+            int bitRate = rateController.update(System.nanoTime() / 1000,
+                    encBuffer.getDataCapacity(), encBuffer.computeUsedBytes(),
+                    encBuffer.computeTimeSpanUsec());
+            if (bitRate > 0) {
+                if (DEBUG) Log.d(TAG, "bit rate -> " + bitRate);
+                setBitRate(bitRate);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        private void setBitRate(int bitRate) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            mediaCodec.setParameters(params);
+        }
+
+        /**
+         * Opens a segment.  Drains first, so that output of earlier frames isn't counted in.
+         */
+        void openSegment() {
+            drainEncoder();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Start every segment at a sync frame: persisted segments need one, and saves
+                // and deletes cut at segment starts without losing most of a GOP.
+                requestSyncFrame();
+            }
+            Segment segment = EncoderBufferHolder.encBuffer.openSegment();
+            if (DEBUG) Log.d(TAG, "openSegment " + segment);
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        private void requestSyncFrame() {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mediaCodec.setParameters(params);
+        }
+
+        /**
+         * Closes the open segment after draining the output of the frames sent so far, and
+         * hands it to the muxer thread if segments are being persisted.
+         */
+        void closeSegment() {
+            drainEncoder();
+            final Segment segment = EncoderBufferHolder.encBuffer.closeSegment();
+            final File file = persistFile;
+            final MediaFormat format = videoFormat;
+            if (segment == null || file == null || format == null) {
+                return;
+            }
+            muxerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    persistSegment(file, format, segment);
+                }
+            });
+        }
+
+        void deleteLastSegment() {
+            final Segment segment = EncoderBufferHolder.encBuffer.deleteLastSegment();
+            if (segment == null) {
+                return;
+            }
+            mCallback.segmentDeleted(segment);
+            if (persistFile != null) {
+                muxerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        unpersistSegment(segment);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns the persister for file, creating it and writing the header if needed.
+         * Muxer thread only.
+         */
+        private static SegmentPersister getPersister(File file, MediaFormat format)
+                throws IOException {
+            SegmentPersister persister = EncoderBufferHolder.persister;
+            if (persister != null && !persister.getFile().equals(file)) {
+                persister.close();
+                persister = null;
+            }
+            if (persister == null) {
+                persister = new SegmentPersister(
+                        EncoderBufferHolder.encBuffer.getPacketRing(), file);
+                EncoderBufferHolder.persister = persister;
+            }
+            if (!persister.isStarted()) {
+                persister.start(format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT),
+                        format.getByteBuffer("csd-0"),
+                        format.getByteBuffer("csd-1"));
+            }
+            return persister;
+        }
+
+        /**
+         * Appends a closed segment to the persisted file.  Muxer thread only.
+         */
+        private static void persistSegment(File file, MediaFormat format, Segment segment) {
+            try {
+                boolean isAppended = getPersister(file, format).append(segment);
+                if (DEBUG) Log.d(TAG, "persistSegment " + segment + " appended=" + isAppended);
+            } catch (IOException ioe) {
+                Log.w(TAG, "persistSegment failed", ioe);
+            }
+        }
+
+        /**
+         * Cuts a deleted segment off the persisted file.  Muxer thread only.
+         */
+        private static void unpersistSegment(Segment segment) {
+            SegmentPersister persister = EncoderBufferHolder.persister;
+            if (persister == null) {
+                return;
+            }
+            try {
+                persister.remove(segment);
+            } catch (IOException ioe) {
+                Log.w(TAG, "unpersistSegment failed", ioe);
+            }
+        }
+
         /**
          * Saves the encoder output to a .mp4 file.
          * <p/>
@@ -475,8 +896,7 @@ public class JaehakEncoder {
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p/>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The file itself is written on the muxer thread, so the encoder isn't paused.
          */
         int circularEncoderBufferIndex = 0;
 
@@ -485,29 +905,120 @@ public class JaehakEncoder {
         }
 
         public ByteBuffer getCircularEncoderByteBufferWithIndex(int circularEncoderBufferIndex) {
-            Log.d(TAG, "getCircularEncoderByteBufferWithIndex(int circularEncoderBufferIndex) " + String.valueOf(circularEncoderBufferIndex));
             return EncoderBufferHolder.encBuffer.getChunk(circularEncoderBufferIndex, new MediaCodec.BufferInfo());
         }
 
 
-        void saveVideo(File outputFile) {
-            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+        void saveVideo(final File outputFile) {
+            if (DEBUG) Log.d(TAG, "saveVideo " + outputFile);
 
-            circularEncoderBufferIndex = EncoderBufferHolder.encBuffer.getFirstIndex();
-            Log.d(TAG, "int index = circularEncoderBuffer.getFirstIndex() index:" + String.valueOf(circularEncoderBufferIndex));
-            if (circularEncoderBufferIndex < 0) {
-                Log.w(TAG, "Unable to get first index");
+            // Pick up lingering output, so the file ends with the latest frame.
+            drainEncoder();
+            if (isSaveInProgress) {
+                Log.w(TAG, "save already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+            final MediaFormat format = videoFormat;
+            if (format == null) {
+                Log.w(TAG, "no output format yet");
                 mCallback.fileSaveComplete(1);
                 return;
             }
+            final boolean isPersisted = outputFile.equals(persistFile);
+
+            isSaveInProgress = true;
+            muxerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    int result;
+                    if (isPersisted) {
+                        result = finishPersistedVideo();
+                    } else {
+                        result = saveSnapshot(outputFile, format);
+                    }
+                    isSaveInProgress = false;
+                    mCallback.fileSaveComplete(result);
+                }
+            });
+        }
+
+        /**
+         * Writes the index of the persisted file; the segments are already in it.  Runs on the
+         * muxer thread, after any pending segment appends.
+         *
+         * @return Status for {@link Callback#fileSaveComplete(int)}.
+         */
+        private static int finishPersistedVideo() {
+            SegmentPersister persister = EncoderBufferHolder.persister;
+            if (persister == null || persister.getSegmentCount() == 0) {
+                Log.w(TAG, "nothing persisted");
+                return 1;
+            }
+            try {
+                persister.finish();
+                return 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "finishing persisted file failed", ioe);
+                return 2;
+            }
+        }
 
+        /**
+         * Pins a snapshot of the buffer and writes it to outputFile.  Runs on the muxer
+         * thread, which is the only one that pins.
+         *
+         * @return Status for {@link Callback#fileSaveComplete(int)}.
+         */
+        private int saveSnapshot(File outputFile, MediaFormat format) {
+            // Pin a snapshot so that the set of packets written is fixed up front, and can't
+            // be evicted while we read it.
+            PacketRing.Snapshot snapshot = EncoderBufferHolder.encBuffer.pinSnapshot();
+            try {
+                circularEncoderBufferIndex = EncoderBufferHolder.encBuffer.getFirstIndex(snapshot);
+                if (circularEncoderBufferIndex < 0) {
+                    Log.w(TAG, "Unable to get first index");
+                    return 1;
+                }
+                AudioEncoderBuffer audioBuffer = EncoderBufferHolder.audioBuffer;
+                MediaFormat audioFormat = audioBuffer != null ? audioBuffer.getFormat() : null;
+                if (audioFormat == null) {
+                    if (GlobalSetting.isFragmentedMp4Save) {
+                        return writeFragmentedVideo(outputFile, format, snapshot);
+                    }
+                    return writeVideo(outputFile, format, snapshot, null, null);
+                }
+                // With audio, always MediaMuxer: the fragmented writer has no audio track.
+                try {
+                    return writeVideo(outputFile, format, snapshot, audioFormat,
+                            audioBuffer.pinSnapshot());
+                } finally {
+                    audioBuffer.unpin();
+                }
+            } finally {
+                EncoderBufferHolder.encBuffer.unpin();
+            }
+        }
+
+        /**
+         * Muxes the packets of a pinned snapshot into a .mp4 file.  Runs on the muxer thread.
+         * <p/>
+         * With audio, the audio packets from the first video frame on are interleaved with it
+         * by PTS: before each video frame, the audio up to that frame's PTS is written, and
+         * the rest of the audio after the last frame.
+         *
+         * @param audioFormat   Audio track format, or null for a video-only file.
+         * @param audioSnapshot Pinned snapshot of EncoderBufferHolder.audioBuffer, or null.
+         * @return Status for {@link Callback#fileSaveComplete(int)}.
+         */
+        private static int writeVideo(File outputFile, MediaFormat format,
+                                      PacketRing.Snapshot snapshot, MediaFormat audioFormat,
+                                      PacketRing.Snapshot audioSnapshot) {
+            JaehakEncoderBuffer encBuffer = EncoderBufferHolder.encBuffer;
+            AudioEncoderBuffer audioBuffer = EncoderBufferHolder.audioBuffer;
+            int index = encBuffer.getFirstIndex(snapshot);
             MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            Log.d(TAG, "bufferInfo :\n" +
-                    "bufferInfo.flags : " + bufferInfo.flags + "\n" + // 0
-                    "bufferInfo.presentationTimeUs : " + bufferInfo.presentationTimeUs + "\n" + // 0
-                    "bufferInfo.offset : " + bufferInfo.offset + "\n" + // 0
-                    "bufferInfo.size : " + bufferInfo.size // 0
-            );
+            MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
 
             MediaMuxer muxer = null;
             int result = -1;
@@ -524,23 +1035,60 @@ public class JaehakEncoder {
                  * @return The track index for this newly added track, and it should be used
                  * in the {@link #writeSampleData}.
                  */
-                int videoTrack = muxer.addTrack(videoFormat);
+                int videoTrack = muxer.addTrack(format);
+                int audioTrack = audioSnapshot != null ? muxer.addTrack(audioFormat) : -1;
                 muxer.start();
 
+                // Audio before the first video frame is skipped.
+                int audioIndex = -1;
+                if (audioTrack >= 0) {
+                    encBuffer.getChunk(index, bufferInfo);
+                    audioIndex = audioBuffer.getIndexAtOrAfter(audioSnapshot,
+                            bufferInfo.presentationTimeUs);
+                }
 
+                result = 0;
                 do {
-                    ByteBuffer buf = EncoderBufferHolder.encBuffer
-                            .getChunk(circularEncoderBufferIndex, bufferInfo);
+                    ByteBuffer buf = encBuffer.getChunk(index, bufferInfo);
                     if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + circularEncoderBufferIndex + " flags=0x" + Integer.toHexString(bufferInfo.flags));
+                        Log.v(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(bufferInfo.flags));
                     }
 
+                    while (audioIndex >= 0) {
+                        ByteBuffer audioBuf = audioBuffer.getChunk(audioIndex, audioInfo);
+                        if (audioInfo.presentationTimeUs > bufferInfo.presentationTimeUs) {
+                            break;
+                        }
+                        muxer.writeSampleData(audioTrack, audioBuf, audioInfo);
+                        audioIndex = audioBuffer.getNextIndex(audioIndex, audioSnapshot);
+                    }
                     muxer.writeSampleData(videoTrack, buf, bufferInfo);
 
-                    circularEncoderBufferIndex = EncoderBufferHolder.encBuffer
-                            .getNextIndex(circularEncoderBufferIndex);
-                } while (circularEncoderBufferIndex >= 0);
-                result = 0;
+                    // Eviction is pinned, but deleting a segment can still rewind the head
+                    // into the snapshot, and new packets then reuse its slots.  Check after
+                    // reading, like a seqlock; any truncation since the snapshot counts.
+                    if (!encBuffer.isStillValid(snapshot) || (audioSnapshot != null &&
+                            !audioBuffer.isStillValid(audioSnapshot))) {
+                        Log.w(TAG, "buffer changed during save");
+                        result = 4;
+                        break;
+                    }
+
+                    index = encBuffer.getNextIndex(index, snapshot);
+                } while (index >= 0);
+
+                // The audio captured after the last frame's PTS.
+                if (result == 0 && audioIndex >= 0) {
+                    while (audioIndex >= 0) {
+                        ByteBuffer audioBuf = audioBuffer.getChunk(audioIndex, audioInfo);
+                        muxer.writeSampleData(audioTrack, audioBuf, audioInfo);
+                        audioIndex = audioBuffer.getNextIndex(audioIndex, audioSnapshot);
+                    }
+                    if (!audioBuffer.isStillValid(audioSnapshot)) {
+                        Log.w(TAG, "buffer changed during save");
+                        result = 4;
+                    }
+                }
             } catch (IOException ioe) {
                 Log.w(TAG, "muxer failed", ioe);
                 result = 2;
@@ -551,20 +1099,116 @@ public class JaehakEncoder {
                 }
             }
 
-            if (VERBOSE) {
+            if (DEBUG) {
                 Log.d(TAG, "muxer stopped, result=" + result);
             }
-            mCallback.fileSaveComplete(result);
+            return result;
+        }
+
+        /**
+         * Writes the packets of a pinned snapshot as a fragmented .mp4 file, one fragment per
+         * GOP.  Runs on the muxer thread.  If the save fails part way, the fragments already
+         * written remain playable.  Video only: used only when there's no audio to save.
+         *
+         * @return Status for {@link Callback#fileSaveComplete(int)}.
+         */
+        private static int writeFragmentedVideo(File outputFile, MediaFormat format,
+                                                PacketRing.Snapshot snapshot) {
+            JaehakEncoderBuffer encBuffer = EncoderBufferHolder.encBuffer;
+            int index = encBuffer.getFirstIndex(snapshot);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+            FileOutputStream out = null;
+            int result = 0;
+            try {
+                out = new FileOutputStream(outputFile);
+                FragmentedMp4Writer writer = new FragmentedMp4Writer(out,
+                        format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT),
+                        format.getByteBuffer("csd-0"),
+                        format.getByteBuffer("csd-1"));
+                do {
+                    ByteBuffer buf = encBuffer.getChunk(index, bufferInfo);
+                    boolean isSync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                    if (isSync) {
+                        writer.flushFragment();
+                    }
+                    writer.addSample(buf, bufferInfo.offset, bufferInfo.size,
+                            bufferInfo.presentationTimeUs, isSync);
+
+                    // See writeVideo().  The pending fragment is dropped, not written.
+                    if (!encBuffer.isStillValid(snapshot)) {
+                        Log.w(TAG, "buffer changed during save");
+                        result = 4;
+                        break;
+                    }
+
+                    index = encBuffer.getNextIndex(index, snapshot);
+                } while (index >= 0);
+                if (result == 0) {
+                    writer.finish();
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "fragmented write failed", ioe);
+                result = 2;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "close failed", ioe);
+                    }
+                }
+            }
+
+            if (DEBUG) {
+                Log.d(TAG, "fragmented write done, result=" + result);
+            }
+            return result;
         }
 
         /**
          * Tells the Looper to quit.
          */
         void shutdown() {
-            if (VERBOSE) Log.d(TAG, "shutdown");
+            if (DEBUG) Log.d(TAG, "shutdown");
             Looper.myLooper().quit();
         }
 
+        /**
+         * MediaCodec callbacks for callback mode.  A separate class so that it's only loaded
+         * on devices that have MediaCodec.Callback.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        private static class CodecCallback extends MediaCodec.Callback {
+            private final EncoderThread mEncoderThread;
+
+            CodecCallback(EncoderThread encoderThread) {
+                mEncoderThread = encoderThread;
+            }
+
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Input comes from the Surface.
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                                MediaCodec.BufferInfo info) {
+                mEncoderThread.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                mEncoderThread.onOutputFormatChanged(format);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.w(TAG, "encoder error", e);
+            }
+        }
+
         /**
          * Handler for EncoderThread.  Used for messages sent from the UI thread (or whatever
          * is driving the encoder) to the encoder thread.
@@ -575,6 +1219,9 @@ public class JaehakEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_OPEN_SEGMENT = 4;
+            public static final int MSG_CLOSE_SEGMENT = 5;
+            public static final int MSG_DELETE_LAST_SEGMENT = 6;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -610,6 +1257,15 @@ public class JaehakEncoder {
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_OPEN_SEGMENT:
+                        encoderThread.openSegment();
+                        break;
+                    case MSG_CLOSE_SEGMENT:
+                        encoderThread.closeSegment();
+                        break;
+                    case MSG_DELETE_LAST_SEGMENT:
+                        encoderThread.deleteLastSegment();
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
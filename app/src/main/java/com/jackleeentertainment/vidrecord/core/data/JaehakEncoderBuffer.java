@@ -19,15 +19,21 @@ package com.jackleeentertainment.vidrecord.core.data;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import com.jackleeentertainment.vidrecord.core.JTrace;
+
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * Holds encoded video data in a circular buffer.
  * <p/>
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
- * (flags and PTS).
+ * (flags and PTS), both kept in a {@link PacketRing}.
  * <p/>
- * Not thread-safe.
+ * Only the encoder thread may add packets.  Other threads (UI, muxer, thumbnailer) must read
+ * through {@link #getSnapshot()} or the snapshot-based accessors, which see a consistent view
+ * without locking.
  */
 public class JaehakEncoderBuffer {
 
@@ -52,34 +58,23 @@ public class JaehakEncoderBuffer {
 
 
     private static final String TAG = "JaehakEncoderBuffer";
-    private static final boolean EXTRA_DEBUG = true;
-    private static final boolean VERBOSE = true;
+    private static final boolean DEBUG = JTrace.ENCODER_BUFFER >= JTrace.DEBUG;
+    private static final boolean VERBOSE = JTrace.ENCODER_BUFFER >= JTrace.VERBOSE; // per packet
 
-    // Raw data (e.g. AVC NAL units) held here.
+    // Raw data (e.g. AVC NAL units) and meta-data are held in a PacketRing.
     //
     // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
     // ByteBuffer it'll access the data directly, if it's a regular ByteBuffer it'll use
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
-    // copying the data).
+    // copying the data).  Which one we hold depends on the PacketStorage type.
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // PacketRing never splits a packet at the edge of the buffer, so every packet can be
+    // handed out as a range of this one ByteBuffer without copying.
+    private final PacketRing packetRing;
     private ByteBuffer bbTotal;
-    private byte[] baTotal;
-
-    // Meta-data held here.  We're using a collection of arrays, rather than an array of
-    // objects with multiple fields, to minimize allocations and heap footprint.
-    private int[] mPacketFlags;
-    private long[] mPacketPtsUsec;
-    private int[] mPacketStart;
-    private int[] mPacketLength;
-
 
-    // Data is added at head and removed from tail.  Head points to an empty node, so if
-    // head==tail the list is empty.
-    private int intMetaHead;
+    // Recorded segments.  Changed on the encoder thread only.
+    private final SegmentTable segmentTable = new SegmentTable();
 
     public int getBaTotalSize() {
         return baTotalSize;
@@ -91,150 +86,164 @@ public class JaehakEncoderBuffer {
      * Allocates the circular buffers we use for encoded data and meta-data.
      */
     public JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
-        Log.d(TAG, "JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec)");
-        // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        baTotalSize = bitRate * desiredSpanSec / 8;
-        Log.d(TAG, "int baTotalSize " + String.valueOf(baTotalSize));
-        baTotal = new byte[baTotalSize]; // Always 22,500,000
-        bbTotal = ByteBuffer.wrap(baTotal);
+        this(bitRate, frameRate, desiredSpanSec, false);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param powerOfTwo Round both buffers up to powers of two so that index wrap-around is a
+     *                   bit mask rather than an integer modulus.
+     */
+    public JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, boolean powerOfTwo) {
+        this(bitRate, frameRate, desiredSpanSec, powerOfTwo, PacketStorage.Type.HEAP);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param powerOfTwo  Round both buffers up to powers of two so that index wrap-around is a
+     *                    bit mask rather than an integer modulus.
+     * @param storageType Where the encoded data lives: a heap byte[] or a direct ByteBuffer.
+     */
+    public JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, boolean powerOfTwo,
+                               PacketStorage.Type storageType) {
+        this(bitRate, frameRate, desiredSpanSec, powerOfTwo, PacketStorage.allocate(storageType,
+                computeDataSize(bitRate, desiredSpanSec, powerOfTwo)));
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param storageType Where the encoded data lives.
+     * @param spillFile   File to map when storageType is MAPPED.
+     */
+    public JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, boolean powerOfTwo,
+                               PacketStorage.Type storageType, File spillFile) throws IOException {
+        this(bitRate, frameRate, desiredSpanSec, powerOfTwo, PacketStorage.allocate(storageType,
+                computeDataSize(bitRate, desiredSpanSec, powerOfTwo), spillFile));
+    }
+
+    private JaehakEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+                                boolean powerOfTwo, PacketStorage storage) {
+        baTotalSize = storage.capacity();
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
         int metaBufferCount = frameRate * desiredSpanSec * 2;
-        mPacketFlags = new int[metaBufferCount];
-        mPacketPtsUsec = new long[metaBufferCount];
-        mPacketStart = new int[metaBufferCount];
-        mPacketLength = new int[metaBufferCount];
+        packetRing = new PacketRing(storage, metaBufferCount, powerOfTwo); // 22,500,000 / 900
+        bbTotal = packetRing.getStorage().newReadView();
 
-        if (VERBOSE) {
+        if (DEBUG) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": baTotalSize=" + baTotalSize +
-                    " metaBufferCount=" + metaBufferCount);
+                    " metaBufferCount=" + packetRing.getMetaLength() +
+                    " powerOfTwo=" + powerOfTwo + " storage=" + storage.getClass().getSimpleName());
         }
         //CBE: bitRate=6000000 frameRate=15 desiredSpan=30: baTotalSize=22500000 metaBufferCount=900
     }
 
+    /**
+     * Returns the size of the encoded-data ring for the given rate and span.
+     */
+    public static int computeDataSize(int bitRate, int desiredSpanSec, boolean powerOfTwo) {
+        // For the encoded data, we assume the encoded bit rate is close to what we request.
+        //
+        // There is a minor performance advantage to using a power of two here, because
+        // not all ARM CPUs support integer modulus.
+        long size = (long) bitRate * desiredSpanSec / 8;
+        if (size > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Buffer span too long: " + desiredSpanSec + "s");
+        }
+        return powerOfTwo ? PacketRing.roundUpToPowerOfTwo((int) size) : (int) size;
+    }
+
+    public PacketRing.OverflowPolicy getOverflowPolicy() {
+        return packetRing.getOverflowPolicy();
+    }
+
+    /**
+     * Sets what add() does when the buffer is full.
+     */
+    public void setOverflowPolicy(PacketRing.OverflowPolicy overflowPolicy) {
+        packetRing.setOverflowPolicy(overflowPolicy);
+    }
+
+    public long getEvictedPackets() {
+        return packetRing.getEvictedPackets();
+    }
+
+    public long getEvictedBytes() {
+        return packetRing.getEvictedBytes();
+    }
+
+    public long getDroppedPackets() {
+        return packetRing.getDroppedPackets();
+    }
+
+    /**
+     * Returns a consistent, lock-free view of the buffered packets.  Safe to call from any
+     * thread; use it instead of reading the head from the UI thread.
+     */
+    public PacketRing.Snapshot getSnapshot() {
+        return packetRing.snapshot();
+    }
+
+    /**
+     * Returns true if the packets covered by the snapshot are still in the buffer.
+     */
+    public boolean isStillValid(PacketRing.Snapshot snapshot) {
+        return packetRing.isStillValid(snapshot);
+    }
+
     /**
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
      */
     public long computeTimeSpanUsec() {
-        Log.d(TAG, "computeTimeSpanUsec()");
-        Log.d(TAG, "Computes the amount of time spanned by the buffered data, based on the presentation time stamps.");
-
-
-        final int metaLen = mPacketStart.length;
+        return packetRing.computeTimeSpanUsec();
+    }
 
-        if (intMetaHead == 0) {
-            // empty list
-            return 0;
-        }
+    /**
+     * Returns the bytes of the data buffer in use.  Encoder thread only.
+     */
+    public int computeUsedBytes() {
+        return packetRing.computeUsedBytes();
+    }
 
-        // head points to the next available node, so grab the previous one
-        int beforeHead = (intMetaHead + metaLen - 1) % metaLen;
-        return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[0];
+    public int getDataCapacity() {
+        return packetRing.getDataLength();
     }
 
     /**
-     * Adds a new encoded data packet to the buffer.
+     * Adds a new encoded data packet to the buffer.  Encoder thread only.
      *
      * @param byteBuffer The data.  Set position() to the start offset and limit() to position+size.
      *                   The position and limit may be altered by this method.
-     * @param size       Number of bytes in the packet.
      * @param flags      MediaCodec.BufferInfo flags.
      * @param ptsUsec    Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped.  With
+     *         {@link PacketRing.OverflowPolicy#DROP_OLDEST_GOP} this only happens when a single
+     *         GOP fills the whole buffer or a pin holds the tail; the rest of the GOP is then
+     *         dropped too.
      */
     // JACK - byteBuffer == bbEncodedData
-    public void add(ByteBuffer byteBuffer, int flags, long ptsUsec) {
-        Log.d(TAG, "add(ByteBuffer bbEncodedData, int flags, long ptsUsec) " + String.valueOf(flags) + "," + String.valueOf(ptsUsec));
-
+    public boolean add(ByteBuffer byteBuffer, int flags, long ptsUsec) {
         int size = byteBuffer.limit() - byteBuffer.position();
-        Log.d(TAG, "int size = bbTotal.limit() - bbTotal.position() "
-                + " " + String.valueOf(size)
-                + "=" + String.valueOf(byteBuffer.limit())
-                + "-" + String.valueOf(byteBuffer.position()));
-
-        if (VERBOSE) {
-            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
-                    " pts=" + ptsUsec);
-        }
-
-        if (canAdd(size)) {
-
-            final int dataLen = baTotal.length; //  baTotal.length : 22500000
-            final int metaLen = mPacketStart.length; // mPacketStart.length : 900
-
-            int dxPacketStart = getHeadStart();
-            dxLaskPacketStart = getHeadStart();
-
-
-            mPacketFlags[intMetaHead] = flags;
-            mPacketPtsUsec[intMetaHead] = ptsUsec;
-            mPacketStart[intMetaHead] = dxPacketStart;
-            mPacketLength[intMetaHead] = size;
-            Log.d(TAG, "intMetaHead : " + String.valueOf(intMetaHead));
-            Log.d(TAG, "flags ptsUsec dxPacketStart size"
-                    + " " + String.valueOf(flags)
-                    + " " + String.valueOf(ptsUsec)
-                    + " " + String.valueOf(dxPacketStart)
-                    + " " + String.valueOf(size));
-
-            Log.d(TAG, "Copy the data in.  Take care if it gets split in half");
-            // Copy the data in.  Take care if it gets split in half.
-            if (dxPacketStart + size < dataLen) {
-                // one chunk
-                Log.d(TAG, "one chunk - dxPacketStart + size < dataLen");
-
-
-                // byteBuffer.position() : 0;
-                byteBuffer.get(
-                        baTotal, //the target byte array(// JACK : Total ByteArray).
-                        dxPacketStart, // the offset of the target byte array.
-                        size //the number of bytes to read.
-                );
-                Log.d(TAG, "byteBuffer.get(baTotal," + "" + String.valueOf(dxPacketStart) + "," + String.valueOf(size));
-                // byteBuffer.position() : 63976, 53122, 22230, etc;
-
-            } else {
-                // two chunks
-
-                Log.d(TAG, "two chunks");
-
-                int firstSize = dataLen - dxPacketStart;
-                if (VERBOSE) {
-                    Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size);
-                }
-
-                Log.d(TAG, "byteBuffer.position() : " + String.valueOf(byteBuffer.position()));
-                byteBuffer.get(baTotal, dxPacketStart, firstSize);
-                Log.d(TAG, "byteBuffer.position() after get 1 : " + String.valueOf(byteBuffer.position()));
-                byteBuffer.get(baTotal, 0, size - firstSize);
-                Log.d(TAG, "byteBuffer.position() after get 2 : " + String.valueOf(byteBuffer.position()));
-
-            }
-
-            intMetaHead = (intMetaHead + 1) % metaLen; // JHE : metaLen==900
-            Log.d(TAG,
-                    "intMetaHead : " + String.valueOf(intMetaHead) + // 0 -> intRecordedFrameNum-1
-                            " metaLen : " + String.valueOf(metaLen) // 900
-            );
-
-            if (EXTRA_DEBUG) {
-                // The head packet is the next-available spot.
-                mPacketFlags[intMetaHead] = 0x77aaccff;
-                mPacketPtsUsec[intMetaHead] = -1000000000L;
-                mPacketStart[intMetaHead] = -100000;
-                mPacketLength[intMetaHead] = Integer.MAX_VALUE;
+        int dxPacketStart = packetRing.getHeadStart();
+        if (packetRing.add(byteBuffer, flags, ptsUsec)) {
+            dxLaskPacketStart = dxPacketStart;
+            if (VERBOSE) {
+                Log.v(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
+                        " pts=" + ptsUsec + " start=" + dxPacketStart +
+                        " intMetaHead=" + getIntMetaHead());
             }
-
-
         } else {
-            Log.d(TAG, "cannot add");
+            if (VERBOSE) Log.v(TAG, "cannot add size=" + size + " pts=" + ptsUsec);
+            return false;
         }
+        return true;
     }
 
     /**
@@ -243,191 +252,160 @@ public class JaehakEncoderBuffer {
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
-        Log.d(TAG, "getFirstIndex()");
-
-        final int metaLen = mPacketStart.length;
-        int index = 0;
-
-        Log.d(TAG,
-                "getFirstIndex() metaLen : " + String.valueOf(mPacketStart.length) +
-                        ", intMetaHead : " + String.valueOf(intMetaHead) +
-                        ", index : " + String.valueOf(0));
-
-        while (index != intMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
-            }
-            index = (index + 1) % metaLen;
-        }
+        return getFirstIndex(packetRing.snapshot());
+    }
 
-        if (index == intMetaHead) {
+    /**
+     * Returns the index of the oldest sync frame covered by the snapshot, or -1.
+     * <p/>
+     * Constant time; sync frames are indexed as they are added.
+     */
+    public int getFirstIndex(PacketRing.Snapshot snapshot) {
+        long seq = packetRing.getOldestSyncSeq(snapshot);
+        if (seq < 0) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
         }
-        Log.d(TAG, "index to return : " + String.valueOf(index));
-        return index;
+        if (DEBUG) Log.d(TAG, "getFirstIndex() : " + packetRing.slotOf(seq));
+        return packetRing.slotOf(seq);
+    }
+
+    /**
+     * Returns the index of the newest sync frame at or before {@code ptsUsec}, or -1.  For
+     * seeking and trimming; O(log n) in the number of buffered sync frames.
+     */
+    public int getSyncIndexAtOrBefore(PacketRing.Snapshot snapshot, long ptsUsec) {
+        long seq = packetRing.getSyncSeqAtOrBefore(snapshot, ptsUsec);
+        return seq < 0 ? -1 : packetRing.slotOf(seq);
+    }
+
+    /**
+     * Returns the index of the n-th buffered sync frame (0 is the oldest), or -1.
+     */
+    public int getSyncIndex(PacketRing.Snapshot snapshot, int n) {
+        long seq = packetRing.getSyncSeq(snapshot, n);
+        return seq < 0 ? -1 : packetRing.slotOf(seq);
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
     public int getNextIndex(int index) {
-
-        final int metaLen = mPacketStart.length;
-        int next = (index + 1) % metaLen;
-        if (next == intMetaHead) {
+        int next = packetRing.nextSlot(index);
+        if (next == packetRing.slotOf(packetRing.getHeadSeq())) {
             next = -1;
         }
-        Log.d(TAG, "getNextIndex(index) index :" + String.valueOf(index) + " return : " + String.valueOf(next));
+        return next;
+    }
 
+    /**
+     * Returns the index of the next packet, or -1 if we've reached the end of the snapshot.
+     * Packets added after the snapshot was taken are not visited.
+     */
+    public int getNextIndex(int index, PacketRing.Snapshot snapshot) {
+        int next = packetRing.nextSlot(index);
+        if (snapshot.isEmpty() || next == packetRing.slotOf(snapshot.headSeq)) {
+            next = -1;
+        }
         return next;
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Returns a reference to the ByteBuffer holding the data, and fills in the BufferInfo
+     * with the packet's offset and size within it.
      * <p/>
-     * The caller must not modify the contents of the returned ByteBuffer.  Altering
-     * the position and limit is allowed.
+     * Never copies or allocates: packets are stored contiguously.  The caller must not modify
+     * the contents of the returned ByteBuffer.  Altering the position and limit is allowed.
      */
     //getCircularEncoderByteBufferWithIndex(), saveVideo()
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        Log.d(TAG, "getChunk() int index : " + String.valueOf(index));
-
-        final int dataLen = baTotal.length;
-        int packetStart = mPacketStart[index];
-        int length = mPacketLength[index];
-        Log.d(TAG,
-                "dataLen : " + String.valueOf(dataLen) +
-                        ", packetStart : " + String.valueOf(packetStart) +
-                        ", length : " + String.valueOf(length)
-        );
-
-        info.flags = mPacketFlags[index];
-        info.offset = packetStart;
-        info.presentationTimeUs = mPacketPtsUsec[index];
-        info.size = length;
-
-
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return bbTotal;
-        } else {
-            // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(baTotal, mPacketStart[index], firstSize);
-            tempBuf.put(baTotal, 0, length - firstSize);
-            info.offset = 0;
-            return tempBuf;
-        }
+        info.flags = packetRing.getFlags(index);
+        info.offset = packetRing.getStart(index);
+        info.presentationTimeUs = packetRing.getPtsUsec(index);
+        info.size = packetRing.getLength(index);
+        return bbTotal;
     }
 
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p/>
      * Equal to the start of the previous packet's data plus the previous packet's length.
+     * Safe to call from any thread.
      */
     public int getHeadStart() {
-        Log.d(TAG, "getHeadStart()");
-        Log.d(TAG, "intMetaHead : " + String.valueOf(intMetaHead));
-        if (intMetaHead == 0) {
-            // list is empty
-            return 0;
-        }
-
-        final int dataLen = baTotal.length;
-        final int metaLen = mPacketStart.length;
-
-        int beforeHead = (intMetaHead + metaLen - 1) % metaLen;
-        Log.d(TAG, "return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen : " + String.valueOf((mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen));
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+        return packetRing.getHeadStart();
     }
 
-    /**
-     * Determines whether this is enough space to fit "size" bytes in the data buffer, and
-     * one more packet in the meta-data buffer.
-     *
-     * @return True if there is enough space to add without removing anything.
-     */
-    private boolean canAdd(int size) {
-        Log.d(TAG, "canAdd()");
-
-        final int dataLen = baTotal.length; //// JACK : Total ByteArray
-        final int metaLen = mPacketStart.length;
-
-        if (size > dataLen) {
-            throw new RuntimeException("Enormous packet: " + size + " vs. buffer " +
-                    dataLen);
-        }
-        if (intMetaHead == 0) {
-            // empty list
-            return true;
-        }
 
-        // Make sure we can advance head without stepping on the tail.
-        int nextHead = (intMetaHead + 1) % metaLen;
+    public ByteBuffer getByteBufferTotal() {
+        return bbTotal;
+    }
 
 
-        // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
-        int headStart = getHeadStart();
-        int tailStart = mPacketStart[0];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
-            if (VERBOSE) {
-                Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
-                        " req=" + size + " free=" + freeSpace + ")");
-            }
-            return false;
-        }
+    int dxLaskPacketStart = 0;
 
-        if (VERBOSE) {
-            Log.v(TAG, "OK: baTotal.length:size=" + size + " free=" + freeSpace + " metaFree=" +
-                    ((0 + metaLen - intMetaHead) % metaLen - 1));
-        }
 
-        return true;
+    public int getDxLaskPacketStart() {
+        return getHeadStart();
     }
 
-
-    public ByteBuffer getByteBufferTotal() {
-        return bbTotal;
+    public void setDxLaskPacketStart(int dxLaskPacketStart) {
+        this.dxLaskPacketStart = dxLaskPacketStart;
     }
 
-
-    public byte[] getBaTotal() {
-        return baTotal;
+    public int getIntMetaHead() {
+        return packetRing.slotOf(packetRing.getHeadSeq());
     }
 
-    public void setBaTotal(byte[] _baTotal) {
-        baTotal = _baTotal;
+    /**
+     * Returns a snapshot whose packets won't be evicted until {@link #unpin()}.  Packets that
+     * don't fit in the meantime are dropped.  For the muxer; one at a time.
+     */
+    public PacketRing.Snapshot pinSnapshot() {
+        return packetRing.pinSnapshot();
     }
 
-
-    //ByJack
-    public void setBbTotal(ByteBuffer _bbTotal) {
-        bbTotal = _bbTotal;
+    public void unpin() {
+        packetRing.unpin();
     }
 
+    PacketRing getPacketRing() {
+        return packetRing;
+    }
 
-    int dxLaskPacketStart = 0;
-
-
-    public int getDxLaskPacketStart() {
-        return getHeadStart();
+    public SegmentTable getSegmentTable() {
+        return segmentTable;
     }
 
-    public void setDxLaskPacketStart(int dxLaskPacketStart) {
-        this.dxLaskPacketStart = dxLaskPacketStart;
+    /**
+     * Opens a recorded segment at the current head.  Encoder thread only.
+     */
+    public Segment openSegment() {
+        return segmentTable.open(packetRing);
     }
 
-    public int getIntMetaHead() {
-        return intMetaHead;
+    /**
+     * Closes the open segment at the current head.  Encoder thread only.
+     */
+    public Segment closeSegment() {
+        Segment segment = segmentTable.close(packetRing);
+        if (DEBUG) Log.d(TAG, "closeSegment() : " + segment);
+        return segment;
     }
 
-    public void setIntMetaHead(int intMetaHead) {
-        Log.d(TAG, "setIntMetaHead() : "+String.valueOf(intMetaHead));
-        this.intMetaHead = intMetaHead;
+    /**
+     * Deletes the last recorded segment by rewinding the head to where it began.  O(1): no
+     * data is copied or allocated.  Encoder thread only.
+     *
+     * @return The deleted segment, or null if there was none.
+     */
+    public Segment deleteLastSegment() {
+        Segment segment = segmentTable.removeLast();
+        if (segment != null) {
+            packetRing.truncateTo(segment.firstSeq);
+        }
+        if (DEBUG) Log.d(TAG, "deleteLastSegment() : " + segment + " headSeq=" +
+                packetRing.getHeadSeq());
+        return segment;
     }
 }
@@ -0,0 +1,42 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PacketStorage} backed by a memory-mapped file in app-private storage.
+ * <p/>
+ * The mapping lives outside the Java heap and is paged by the kernel, so the ring can hold
+ * minutes of video without heap growth; resident memory is whatever the page cache keeps.
+ * Reads hand out slices of the mapping, which MediaMuxer treats as any direct buffer.
+ * <p/>
+ * The file is unlinked as soon as it's mapped.  The mapping stays valid, and the space is
+ * returned when the mapping is collected or the process dies, so a crash can't leave a
+ * stale spill file behind.
+ */
+public class MappedPacketStorage extends DirectPacketStorage {
+
+    private MappedPacketStorage(MappedByteBuffer buffer) {
+        super(buffer);
+    }
+
+    /**
+     * Maps {@code capacity} bytes of {@code file}, creating or truncating it.
+     */
+    public static MappedPacketStorage create(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    capacity);
+            return new MappedPacketStorage(buffer);
+        } finally {
+            // Neither closing the channel nor unlinking the file invalidates the mapping.
+            raf.close();
+            file.delete();
+        }
+    }
+}
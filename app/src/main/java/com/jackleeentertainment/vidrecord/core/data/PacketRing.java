@@ -0,0 +1,735 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer circular storage for encoded packets, used by {@link JaehakEncoderBuffer}.
+ * <p/>
+ * Like the original buffer this is a pair of rings, one for the raw data and one for the
+ * meta-data (flags, PTS, start offset and length), kept as parallel primitive arrays so that
+ * the steady state allocates nothing.
+ * <p/>
+ * Positions are tracked as monotonically increasing 64-bit sequence numbers rather than slot
+ * indices: the slot of packet {@code seq} is {@code seq % metaLen}.  Only the producer (the
+ * encoder thread) writes packets or moves {@link #mHeadSeq}/{@link #mTailSeq}.  Slot contents
+ * are written first and the head is published afterwards with a volatile store (release), so a
+ * reader that loads the head first (acquire) always sees fully written packets.  Readers on
+ * other threads (UI, muxer, thumbnailer) should go through {@link #snapshot()}, which returns a
+ * consistent, immutable view without taking a lock.
+ * <p/>
+ * Sync frames are additionally indexed in a secondary ring of packet sequence numbers, kept
+ * in order as packets are added, so the oldest sync frame, the N-th sync frame and the sync
+ * frame at or before a given PTS are found in constant or logarithmic time rather than by
+ * scanning the meta-data.
+ * <p/>
+ * When a packet doesn't fit, the {@link OverflowPolicy} decides: either whole GOPs are evicted
+ * from the tail until it does (the ring then always holds the newest N seconds, starting with
+ * a sync frame), or the packet is refused and the recording has to stop.
+ * <p/>
+ * A reader that needs its snapshot to survive while the producer keeps adding (the muxer,
+ * writing a file during recording) pins it with {@link #pinSnapshot()}; eviction then stops
+ * at the pinned tail and packets that don't fit are dropped instead, until {@link #unpin()}.
+ * <p/>
+ * Once a packet has been dropped, every packet after it is dropped too until the next sync
+ * frame, so the ring never holds a frame whose reference is missing.  The producer should ask
+ * the encoder for a sync frame when add() starts failing.
+ * <p/>
+ * A packet is never split across the end of the data ring (it moves to offset 0 instead), so
+ * every packet is one contiguous slice and readers never have to copy.
+ * <p/>
+ * In power-of-two mode both rings are rounded up to powers of two, and every wrap-around uses a
+ * bit mask instead of {@code %}, which is slow on ARM cores without an integer divide.  This
+ * costs memory (a 22.5 MB data ring becomes 32 MB), so it is opt-in.
+ * <p/>
+ * No Android dependencies, so it can be exercised and benchmarked on a plain JVM.
+ */
+public class PacketRing {
+
+    /**
+     * Same value as MediaCodec.BUFFER_FLAG_SYNC_FRAME.
+     */
+    public static final int FLAG_SYNC_FRAME = 1;
+
+    /**
+     * What add() does when a packet doesn't fit.
+     */
+    public enum OverflowPolicy {
+        // Evict whole GOPs from the tail to make room.
+        DROP_OLDEST_GOP,
+        // Refuse the packet; the recording must stop.
+        STOP_RECORDING
+    }
+
+    // Raw data.
+    private final PacketStorage mStorage;
+
+    // Meta-data, indexed by slot.
+    private final int[] mPacketFlags;
+    private final long[] mPacketPtsUsec;
+    private final int[] mPacketStart;
+    private final int[] mPacketLength;
+
+    // Power-of-two mode: lengths are powers of two and wrapping is done with these masks.
+    private final boolean mPowerOfTwo;
+    private final int mDataMask;
+    private final int mMetaMask;
+
+    // Sequence number of the oldest packet, and of the next packet to be written.  The ring
+    // is empty when they are equal.  Written by the producer only.
+    private volatile long mHeadSeq;
+    private volatile long mTailSeq;
+
+    // Number of truncateTo() calls that dropped packets.  Truncation moves the head back, so
+    // sequence numbers, slots and bytes are reused; readers compare this to tell.
+    private volatile int mTruncations;
+
+    // Sequence numbers of the sync frames currently in the ring, oldest first.  Entry i lives
+    // at slotOf(i); it can't hold more entries than there are packets, so metaLen is enough.
+    private final long[] mSyncSeq;
+    private volatile long mSyncHead;
+    private volatile long mSyncTail;
+
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.STOP_RECORDING;
+
+    // A packet was dropped; drop until the next sync frame.  Producer only.
+    private boolean mIsDroppingToSync = false;
+
+    // Oldest sequence number a reader has pinned; eviction won't go past it.
+    private volatile long mPinnedSeq = Long.MAX_VALUE;
+
+    // Statistics.  Written by the producer only.
+    private volatile long mEvictedPackets;
+    private volatile long mEvictedBytes;
+    private volatile long mDroppedPackets;
+
+    /**
+     * Allocates the data and meta-data rings.
+     *
+     * @param dataLen   Size of the raw data ring, in bytes.
+     * @param metaLen   Number of packet slots.
+     */
+    public PacketRing(int dataLen, int metaLen) {
+        this(dataLen, metaLen, false);
+    }
+
+    /**
+     * Allocates the data and meta-data rings, with the data on the Java heap.
+     *
+     * @param dataLen    Size of the raw data ring, in bytes.
+     * @param metaLen    Number of packet slots.
+     * @param powerOfTwo Round both sizes up to powers of two and wrap with masks.
+     */
+    public PacketRing(int dataLen, int metaLen, boolean powerOfTwo) {
+        this(new HeapPacketStorage(powerOfTwo ? roundUpToPowerOfTwo(dataLen) : dataLen),
+                metaLen, powerOfTwo);
+    }
+
+    /**
+     * Creates the rings on top of the given data storage.
+     *
+     * @param storage    Raw data store.  In power-of-two mode its capacity must be a power of two.
+     * @param metaLen    Number of packet slots.
+     * @param powerOfTwo Round the slot count up to a power of two and wrap with masks.
+     */
+    public PacketRing(PacketStorage storage, int metaLen, boolean powerOfTwo) {
+        int dataLen = storage.capacity();
+        if (powerOfTwo) {
+            if (Integer.bitCount(dataLen) != 1) {
+                throw new IllegalArgumentException("Storage size isn't a power of two: " + dataLen);
+            }
+            metaLen = roundUpToPowerOfTwo(metaLen);
+        }
+        mPowerOfTwo = powerOfTwo;
+        mDataMask = powerOfTwo ? dataLen - 1 : 0;
+        mMetaMask = powerOfTwo ? metaLen - 1 : 0;
+        mStorage = storage;
+        mPacketFlags = new int[metaLen];
+        mPacketPtsUsec = new long[metaLen];
+        mPacketStart = new int[metaLen];
+        mPacketLength = new int[metaLen];
+        mSyncSeq = new long[metaLen];
+    }
+
+    public int getDataLength() {
+        return mStorage.capacity();
+    }
+
+    public int getMetaLength() {
+        return mPacketStart.length;
+    }
+
+    public boolean isPowerOfTwo() {
+        return mPowerOfTwo;
+    }
+
+    /**
+     * Returns the smallest power of two that is >= n.
+     */
+    public static int roundUpToPowerOfTwo(int n) {
+        if (n <= 1) {
+            return 1;
+        }
+        int highest = Integer.highestOneBit(n - 1) << 1;
+        if (highest <= 0) {
+            throw new IllegalArgumentException("Too large for a power-of-two ring: " + n);
+        }
+        return highest;
+    }
+
+    /**
+     * Converts a sequence number to a meta-data slot.
+     */
+    public int slotOf(long seq) {
+        if (mPowerOfTwo) {
+            return (int) seq & mMetaMask;
+        }
+        return (int) (seq % mPacketStart.length);
+    }
+
+    /**
+     * Returns the slot after {@code slot}.
+     */
+    public int nextSlot(int slot) {
+        if (mPowerOfTwo) {
+            return (slot + 1) & mMetaMask;
+        }
+        return (slot + 1) % mPacketStart.length;
+    }
+
+    /**
+     * Wraps a non-negative data offset smaller than twice the data length.
+     */
+    private int wrapData(int offset) {
+        if (mPowerOfTwo) {
+            return offset & mDataMask;
+        }
+        return offset % mStorage.capacity();
+    }
+
+    public long getHeadSeq() {
+        return mHeadSeq;
+    }
+
+    public long getTailSeq() {
+        return mTailSeq;
+    }
+
+    public int getPacketCount() {
+        // Read head first; the tail can only move towards it.
+        long head = mHeadSeq;
+        return (int) (head - mTailSeq);
+    }
+
+    public boolean isEmpty() {
+        return mHeadSeq == mTailSeq;
+    }
+
+    /**
+     * Computes the data offset for the next place to store data.
+     * <p/>
+     * Equal to the start of the previous packet's data plus the previous packet's length,
+     * plus one (kept from the original buffer, callers rely on it).
+     */
+    public int getHeadStart() {
+        long head = mHeadSeq;
+        if (head == mTailSeq) {
+            // list is empty
+            return 0;
+        }
+        int beforeHead = slotOf(head - 1);
+        return wrapData(mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1);
+    }
+
+    /**
+     * Computes the amount of time spanned by the buffered packets, based on their presentation
+     * time stamps.  Doesn't allocate.
+     */
+    public long computeTimeSpanUsec() {
+        long head = mHeadSeq;
+        long tail = mTailSeq;
+        if (head <= tail) {
+            return 0;
+        }
+        return mPacketPtsUsec[slotOf(head - 1)] - mPacketPtsUsec[slotOf(tail)];
+    }
+
+    /**
+     * Returns the bytes of the data ring in use, counting the unused end of the ring when a
+     * packet has wrapped to offset 0.  Producer thread.
+     */
+    public int computeUsedBytes() {
+        long head = mHeadSeq;
+        long tail = mTailSeq;
+        if (head == tail) {
+            return 0;
+        }
+        int used = getHeadStart() - mPacketStart[slotOf(tail)];
+        return used > 0 ? used : used + mStorage.capacity();
+    }
+
+    /**
+     * Determines whether this is enough space to fit "size" bytes in the data ring, and one
+     * more packet in the meta-data ring.
+     *
+     * @return True if there is enough space to add without removing anything.
+     */
+    public boolean canAdd(int size) {
+        return findStart(size) >= 0;
+    }
+
+    /**
+     * Finds where a packet of "size" bytes would be stored, or returns -1 if it doesn't fit.
+     * <p/>
+     * Packets are never split across the end of the data ring.  If there isn't room before
+     * the end, the packet goes to offset 0 and the rest of the ring is left unused until the
+     * tail passes it.
+     * <p/>
+     * At least one byte is always left free before the tail packet.  Otherwise a packet that
+     * exactly fills the gap would put the next head start (which skips a byte) past the tail,
+     * and the ring would look unwrapped with the free space on the wrong side.
+     */
+    private int findStart(int size) {
+        final int dataLen = mStorage.capacity();
+        if (size > dataLen) {
+            throw new RuntimeException("Enormous packet: " + size + " vs. buffer " + dataLen);
+        }
+        long head = mHeadSeq;
+        long tail = mTailSeq;
+        if (head == tail) {
+            // empty list
+            return 0;
+        }
+        if (head - tail >= mPacketStart.length - 1) {
+            // out of meta-data slots
+            return -1;
+        }
+
+        // Need the byte offset of the start of the "tail" packet, and the byte offset where
+        // "head" will store its data.
+        int headStart = getHeadStart();
+        int tailStart = mPacketStart[slotOf(tail)];
+        if (tailStart >= headStart) {
+            // Free space is [headStart, tailStart), less the byte kept before the tail.
+            return (headStart + size < tailStart) ? headStart : -1;
+        }
+        // Free space is [headStart, dataLen) and [0, tailStart), less the byte kept before
+        // the tail.  With the tail at 0 that byte is the last one of the ring: a packet ending
+        // at dataLen would wrap the next head start to 1, inside the tail packet.
+        if (headStart + size < dataLen || (headStart + size == dataLen && tailStart > 0)) {
+            return headStart;
+        }
+        return (size < tailStart) ? 0 : -1;
+    }
+
+    /**
+     * Adds a new encoded data packet.  Producer thread only.
+     *
+     * @param byteBuffer The data, from position() to limit().  The position is advanced.
+     * @param flags      MediaCodec.BufferInfo flags.
+     * @param ptsUsec    Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped: there was no room, or an earlier packet of its
+     *         GOP was dropped.
+     */
+    public boolean add(ByteBuffer byteBuffer, int flags, long ptsUsec) {
+        if (mIsDroppingToSync && (flags & FLAG_SYNC_FRAME) == 0) {
+            mDroppedPackets++;
+            return false;
+        }
+        int size = byteBuffer.remaining();
+        int packetStart;
+        while ((packetStart = findStart(size)) < 0) {
+            if (mOverflowPolicy != OverflowPolicy.DROP_OLDEST_GOP || !evictOldestGop()) {
+                mDroppedPackets++;
+                mIsDroppingToSync = true;
+                return false;
+            }
+        }
+        mIsDroppingToSync = false;
+
+        final long head = mHeadSeq;
+        final int slot = slotOf(head);
+
+        // Copy the data in.  Always one contiguous chunk, see findStart().
+        mStorage.write(packetStart, byteBuffer);
+
+        mPacketFlags[slot] = flags;
+        mPacketPtsUsec[slot] = ptsUsec;
+        mPacketStart[slot] = packetStart;
+        mPacketLength[slot] = size;
+
+        if ((flags & FLAG_SYNC_FRAME) != 0) {
+            long syncHead = mSyncHead;
+            mSyncSeq[slotOf(syncHead)] = head;
+            mSyncHead = syncHead + 1;
+        }
+
+        // Publish.
+        mHeadSeq = head + 1;
+        return true;
+    }
+
+    /**
+     * Evicts the packets from the tail up to (not including) the next sync frame, so the ring
+     * still starts with a sync frame.  Producer thread only.
+     *
+     * @return False if there is no second GOP to fall back to, i.e. only the GOP currently
+     *         being written is left.
+     */
+    private boolean evictOldestGop() {
+        final long head = mHeadSeq;
+        final long tail = mTailSeq;
+        if (head == tail) {
+            return false;
+        }
+
+        // The sync index only holds frames at or after the tail, so this is at most two steps.
+        final long syncHead = mSyncHead;
+        long syncTail = mSyncTail;
+        long newTail = -1;
+        for (long i = syncTail; i < syncHead; i++) {
+            long seq = mSyncSeq[slotOf(i)];
+            if (seq > tail) {
+                newTail = seq;
+                break;
+            }
+        }
+        if (newTail < 0 || newTail > mPinnedSeq) {
+            return false;
+        }
+
+        long bytes = 0;
+        for (long seq = tail; seq < newTail; seq++) {
+            bytes += mPacketLength[slotOf(seq)];
+        }
+        while (syncTail < syncHead && mSyncSeq[slotOf(syncTail)] < newTail) {
+            syncTail++;
+        }
+
+        mEvictedPackets += newTail - tail;
+        mEvictedBytes += bytes;
+        mSyncTail = syncTail;
+        // Move the tail before the slots and data get reused, so snapshot readers notice.
+        mTailSeq = newTail;
+        return true;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Number of packets evicted from the tail to make room.
+     */
+    public long getEvictedPackets() {
+        return mEvictedPackets;
+    }
+
+    /**
+     * Number of payload bytes evicted from the tail to make room.
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    /**
+     * Returns true while add() drops everything up to the next sync frame.  Producer thread.
+     */
+    public boolean isDroppingToSync() {
+        return mIsDroppingToSync;
+    }
+
+    /**
+     * Number of packets refused by add(): those that didn't fit, and the rest of their GOP.
+     */
+    public long getDroppedPackets() {
+        return mDroppedPackets;
+    }
+
+    /**
+     * Discards everything.  Producer thread only.
+     */
+    public void clear() {
+        mSyncTail = mSyncHead;
+        mTailSeq = mHeadSeq;
+    }
+
+    /**
+     * Moves the head so that slot index {@code slot} becomes the next free slot, i.e. keeps
+     * the packets from the tail up to (but not including) {@code slot}.
+     */
+    public void setHeadSlot(int slot) {
+        final int metaLen = mPacketStart.length;
+        long tail = mTailSeq;
+        int keep = slot - slotOf(tail);
+        if (keep < 0) {
+            keep += metaLen;
+        }
+        truncateTo(tail + keep);
+    }
+
+    /**
+     * Drops every packet from sequence number {@code headSeq} on, e.g. the packets of the
+     * last recorded segment.  If {@code headSeq} has already been evicted the ring becomes
+     * empty.  Nothing is copied; cost is proportional to the number of sync frames dropped.
+     * Producer thread only, or while the producer is idle.
+     */
+    public void truncateTo(long headSeq) {
+        long head = mHeadSeq;
+        if (headSeq >= head) {
+            return;
+        }
+        long tail = mTailSeq;
+        if (headSeq < tail) {
+            headSeq = tail;
+        }
+
+        // Forget sync frames that are no longer in the ring.
+        long syncHead = mSyncHead;
+        while (syncHead > mSyncTail && mSyncSeq[slotOf(syncHead - 1)] >= headSeq) {
+            syncHead--;
+        }
+        // Before the head moves, so a reader that sees reused slots sees the count change.
+        mTruncations++;
+        mSyncHead = syncHead;
+        mHeadSeq = headSeq;
+    }
+
+    /**
+     * Returns the number of truncations so far, for {@link #contains(long, int)}.
+     */
+    public int getTruncations() {
+        return mTruncations;
+    }
+
+    public int getFlags(int slot) {
+        return mPacketFlags[slot];
+    }
+
+    public long getPtsUsec(int slot) {
+        return mPacketPtsUsec[slot];
+    }
+
+    public int getStart(int slot) {
+        return mPacketStart[slot];
+    }
+
+    public int getLength(int slot) {
+        return mPacketLength[slot];
+    }
+
+    public PacketStorage getStorage() {
+        return mStorage;
+    }
+
+    /**
+     * Returns a consistent view of the ring's extent.  Safe to call from any thread.
+     * <p/>
+     * The view stays valid for reading packet data until the producer reuses the slots,
+     * which happens after the tail moves past {@link Snapshot#tailSeq} or after a
+     * {@link #truncateTo}; readers that care can re-check with {@link #isStillValid(Snapshot)}.
+     */
+    public Snapshot snapshot() {
+        while (true) {
+            int truncations = mTruncations;
+            long head = mHeadSeq;   // acquire: slots before head are fully written
+            long tail = mTailSeq;
+            if (tail > head) {
+                // cleared between the two reads; retry
+                continue;
+            }
+            int headStart = 0;
+            long firstPts = 0;
+            long lastPts = 0;
+            if (head != tail) {
+                int first = slotOf(tail);
+                int last = slotOf(head - 1);
+                headStart = wrapData(mPacketStart[last] + mPacketLength[last] + 1);
+                firstPts = mPacketPtsUsec[first];
+                lastPts = mPacketPtsUsec[last];
+            }
+            // The sync index may already include packets added after we read the head.
+            long syncTail = mSyncTail;
+            long syncHead = mSyncHead;
+            while (syncHead > syncTail && mSyncSeq[slotOf(syncHead - 1)] >= head) {
+                syncHead--;
+            }
+            if (tail == mTailSeq && truncations == mTruncations) {
+                return new Snapshot(tail, head, headStart, firstPts, lastPts, syncTail, syncHead,
+                        truncations);
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot and stops eviction from discarding any of its packets until
+     * {@link #unpin()}.  Only one snapshot can be pinned at a time.  Safe to call from any
+     * thread.
+     */
+    public Snapshot pinSnapshot() {
+        while (true) {
+            Snapshot snapshot = snapshot();
+            mPinnedSeq = snapshot.tailSeq;
+            // The producer reads the pin before moving the tail, so if the tail hasn't moved
+            // yet it won't move past the pin.
+            if (mTailSeq == snapshot.tailSeq) {
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * Stops eviction from discarding packet {@code seq} or anything after it, until
+     * {@link #unpin()}.  Shares the one pin with {@link #pinSnapshot()}.  Safe to call from any
+     * thread.
+     *
+     * @return False, and nothing pinned, if the packet is already gone.
+     */
+    public boolean pin(long seq) {
+        mPinnedSeq = seq;
+        if (mTailSeq > seq) {
+            mPinnedSeq = Long.MAX_VALUE;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if packet {@code seq} is in the ring and the ring hasn't been truncated
+     * since {@link #getTruncations()} returned {@code truncations}.  Readers use this after
+     * reading a packet to check that it wasn't replaced while they read: after a truncation
+     * new packets reuse the sequence numbers.
+     */
+    public boolean contains(long seq, int truncations) {
+        return mTailSeq <= seq && seq < mHeadSeq && truncations == mTruncations;
+    }
+
+    /**
+     * Releases the pin.
+     */
+    public void unpin() {
+        mPinnedSeq = Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the sequence number of the oldest sync frame in the snapshot, or -1.  O(1).
+     */
+    public long getOldestSyncSeq(Snapshot snapshot) {
+        return getSyncSeq(snapshot, 0);
+    }
+
+    /**
+     * Returns the sequence number of the n-th sync frame (0 is the oldest) in the snapshot,
+     * or -1 if there aren't that many.  O(1).
+     */
+    public long getSyncSeq(Snapshot snapshot, int n) {
+        if (n < 0 || n >= snapshot.getSyncCount()) {
+            return -1;
+        }
+        return mSyncSeq[slotOf(snapshot.syncTail + n)];
+    }
+
+    /**
+     * Returns the sequence number of the newest sync frame whose PTS is at or before
+     * {@code ptsUsec}, or -1 if there is none.  O(log n) in the number of sync frames.
+     */
+    public long getSyncSeqAtOrBefore(Snapshot snapshot, long ptsUsec) {
+        long lo = snapshot.syncTail;
+        long hi = snapshot.syncHead - 1;
+        long found = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long seq = mSyncSeq[slotOf(mid)];
+            if (mPacketPtsUsec[slotOf(seq)] <= ptsUsec) {
+                found = seq;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the sequence number of the oldest sync frame in the snapshot at or after
+     * sequence number {@code seq}, or -1 if there is none.  O(log n) in the number of sync
+     * frames.
+     */
+    public long getSyncSeqAtOrAfter(Snapshot snapshot, long seq) {
+        long lo = snapshot.syncTail;
+        long hi = snapshot.syncHead - 1;
+        long found = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long syncSeq = mSyncSeq[slotOf(mid)];
+            if (syncSeq >= seq) {
+                found = syncSeq;
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns true if none of the packets covered by the snapshot have been discarded, by
+     * eviction or by a truncation (even one that new packets have since refilled).
+     */
+    public boolean isStillValid(Snapshot snapshot) {
+        long tail = mTailSeq;
+        return tail <= snapshot.tailSeq && mHeadSeq >= snapshot.headSeq &&
+                mTruncations == snapshot.truncations;
+    }
+
+    /**
+     * Immutable view of the ring's extent at one point in time.
+     */
+    public static final class Snapshot {
+        public final long tailSeq;
+        public final long headSeq;
+        public final int headStart;
+        public final long firstPtsUsec;
+        public final long lastPtsUsec;
+        // Range of the sync-frame index covered by this snapshot.
+        public final long syncTail;
+        public final long syncHead;
+        // PacketRing.getTruncations() when the snapshot was taken.
+        public final int truncations;
+
+        Snapshot(long tailSeq, long headSeq, int headStart, long firstPtsUsec, long lastPtsUsec,
+                 long syncTail, long syncHead, int truncations) {
+            this.tailSeq = tailSeq;
+            this.headSeq = headSeq;
+            this.headStart = headStart;
+            this.firstPtsUsec = firstPtsUsec;
+            this.lastPtsUsec = lastPtsUsec;
+            this.syncTail = syncTail;
+            this.syncHead = syncHead;
+            this.truncations = truncations;
+        }
+
+        public int getSyncCount() {
+            return (int) (syncHead - syncTail);
+        }
+
+        public int getPacketCount() {
+            return (int) (headSeq - tailSeq);
+        }
+
+        public boolean isEmpty() {
+            return headSeq == tailSeq;
+        }
+
+        public long getTimeSpanUsec() {
+            return lastPtsUsec - firstPtsUsec;
+        }
+
+        public boolean contains(long seq) {
+            return seq >= tailSeq && seq < headSeq;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Backing store for the raw data ring of a {@link PacketRing}.
+ * <p/>
+ * Writes come from the producer (encoder thread) only.  Readers get their own view via
+ * {@link #newReadView()} so that they can move position/limit without disturbing each other;
+ * the view can be passed straight to MediaMuxer.writeSampleData() with the packet's offset.
+ */
+public abstract class PacketStorage {
+
+    public enum Type {
+        // byte[] on the Java heap.
+        HEAP,
+        // ByteBuffer.allocateDirect().
+        DIRECT,
+        // Memory-mapped file, for spans too long to keep in RAM.
+        MAPPED
+    }
+
+    /**
+     * Allocates storage of the given type.
+     *
+     * @param spillFile File to map for {@link Type#MAPPED}; ignored otherwise.
+     */
+    public static PacketStorage allocate(Type type, int capacity, File spillFile)
+            throws IOException {
+        if (type == Type.MAPPED) {
+            return MappedPacketStorage.create(spillFile, capacity);
+        }
+        return allocate(type, capacity);
+    }
+
+    /**
+     * Allocates in-memory storage of the given type.
+     */
+    public static PacketStorage allocate(Type type, int capacity) {
+        switch (type) {
+            case MAPPED:
+                throw new IllegalArgumentException("Mapped storage needs a spill file");
+            case DIRECT:
+                return new DirectPacketStorage(capacity);
+            case HEAP:
+            default:
+                return new HeapPacketStorage(capacity);
+        }
+    }
+
+    /**
+     * Size in bytes.
+     */
+    public abstract int capacity();
+
+    /**
+     * Copies src.remaining() bytes to {@code offset}, advancing src's position.  Producer only.
+     */
+    public abstract void write(int offset, ByteBuffer src);
+
+    /**
+     * Returns a new ByteBuffer spanning the whole storage, with its own position and limit.
+     * Allocates; create one per reader, not per packet.
+     */
+    public abstract ByteBuffer newReadView();
+
+    /**
+     * Releases the storage.  Nothing may be read or written afterwards.
+     */
+    public void release() {
+    }
+}
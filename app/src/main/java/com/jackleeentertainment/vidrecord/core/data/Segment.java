@@ -0,0 +1,63 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+/**
+ * One recorded segment (press-to-release of the record button) in the encoder buffer.
+ * <p/>
+ * Immutable.  Boundaries are taken on the encoder thread, so they fall exactly between
+ * packets.  Packets are identified by {@link PacketRing} sequence numbers, which don't wrap;
+ * the slots and byte offsets are where those packets sit in the ring right now.
+ */
+public final class Segment {
+    // Packets [firstSeq, endSeq).  endSeq is -1 while the segment is open.
+    public final long firstSeq;
+    public final long endSeq;
+
+    // Ring slots of the first and last packet, or -1 if the segment is open or empty.
+    public final int firstSlot;
+    public final int lastSlot;
+
+    // Byte range [startByte, endByte) in the data ring.  May wrap around the end of it.
+    public final int startByte;
+    public final int endByte;
+
+    public final long firstPtsUsec;
+    public final long lastPtsUsec;
+
+    // Sequence number of the segment's first sync frame, or -1.
+    public final long keyFrameSeq;
+
+    Segment(long firstSeq) {
+        this(firstSeq, -1, -1, -1, 0, 0, 0, 0, -1);
+    }
+
+    Segment(long firstSeq, long endSeq, int firstSlot, int lastSlot, int startByte,
+            int endByte, long firstPtsUsec, long lastPtsUsec, long keyFrameSeq) {
+        this.firstSeq = firstSeq;
+        this.endSeq = endSeq;
+        this.firstSlot = firstSlot;
+        this.lastSlot = lastSlot;
+        this.startByte = startByte;
+        this.endByte = endByte;
+        this.firstPtsUsec = firstPtsUsec;
+        this.lastPtsUsec = lastPtsUsec;
+        this.keyFrameSeq = keyFrameSeq;
+    }
+
+    public boolean isOpen() {
+        return endSeq < 0;
+    }
+
+    public int getPacketCount() {
+        return isOpen() ? 0 : (int) (endSeq - firstSeq);
+    }
+
+    public long getDurationUsec() {
+        return lastPtsUsec - firstPtsUsec;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment[seq " + firstSeq + ".." + endSeq + " pts " + firstPtsUsec + ".." +
+                lastPtsUsec + " key " + keyFrameSeq + "]";
+    }
+}
@@ -0,0 +1,179 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Appends closed segments to a fragmented .mp4 file while recording goes on, so that the final
+ * save only has to write the index.
+ * <p/>
+ * Each segment is written from its first sync frame, one fragment per GOP, straight from the
+ * {@link PacketRing}; the segment's packets are pinned while they're read.  Deleting a segment
+ * cuts the file back to where the segment began.  {@link #finish()} writes the mfra index;
+ * appending again afterwards cuts that off first.  Video only, like the writer; JaehakEncoder
+ * doesn't persist while audio is being recorded.
+ * <p/>
+ * One thread only (the muxer thread).  No Android dependencies.
+ */
+public class SegmentPersister {
+
+    private final PacketRing mRing;
+    private final ByteBuffer mReadView;
+    private final File mFile;
+
+    private FileOutputStream mOut;
+    private FragmentedMp4Writer mWriter;
+
+    // Persisted segments, oldest first, and the file offset where each one's fragments begin.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private final ArrayList<Long> mSegmentOffsets = new ArrayList<Long>();
+
+    // Where the mfra starts once finish() has been called, else -1.
+    private long mIndexStart = -1;
+
+    public SegmentPersister(PacketRing ring, File file) {
+        mRing = ring;
+        mReadView = ring.getStorage().newReadView();
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns true once {@link #start} has written the file header.
+     */
+    public boolean isStarted() {
+        return mWriter != null;
+    }
+
+    /**
+     * Creates (or truncates) the file and writes the header.
+     *
+     * @param sps Codec config "csd-0".
+     * @param pps Codec config "csd-1".
+     */
+    public void start(int width, int height, ByteBuffer sps, ByteBuffer pps) throws IOException {
+        if (mWriter != null) {
+            throw new IllegalStateException("already started");
+        }
+        mOut = new FileOutputStream(mFile);
+        try {
+            mWriter = new FragmentedMp4Writer(mOut, width, height, sps, pps);
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Appends a closed segment's GOPs to the file.
+     *
+     * @return False if nothing was written: the segment has no sync frame, its packets have
+     *         been evicted, or it was deleted from the ring while being read.
+     */
+    public boolean append(Segment segment) throws IOException {
+        if (segment.isOpen() || segment.keyFrameSeq < 0) {
+            return false;
+        }
+        if (mIndexStart >= 0) {
+            // More to come after all; drop the index.
+            rewind(mIndexStart);
+            mIndexStart = -1;
+        }
+        final long startSeq = segment.keyFrameSeq;
+        if (!mRing.pin(startSeq)) {
+            return false;
+        }
+        final int truncations = mRing.getTruncations();
+        long offset = mWriter.getPosition();
+        try {
+            for (long seq = startSeq; seq < segment.endSeq; seq++) {
+                int slot = mRing.slotOf(seq);
+                boolean isSync = (mRing.getFlags(slot) & PacketRing.FLAG_SYNC_FRAME) != 0;
+                if (isSync) {
+                    mWriter.flushFragment();
+                }
+                mWriter.addSample(mReadView, mRing.getStart(slot), mRing.getLength(slot),
+                        mRing.getPtsUsec(slot), isSync);
+                // The pin stops eviction, not deletion; check after reading.
+                if (!mRing.contains(seq, truncations)) {
+                    rewind(offset);
+                    return false;
+                }
+            }
+            mWriter.flushFragment();
+        } catch (IOException ioe) {
+            rewind(offset);
+            throw ioe;
+        } finally {
+            mRing.unpin();
+        }
+        mSegments.add(segment);
+        mSegmentOffsets.add(offset);
+        return true;
+    }
+
+    /**
+     * Cuts a persisted segment, and anything after it, off the file.
+     *
+     * @return False if the segment wasn't persisted.
+     */
+    public boolean remove(Segment segment) throws IOException {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            if (mSegments.get(i).firstSeq == segment.firstSeq) {
+                rewind(mSegmentOffsets.get(i));
+                mIndexStart = -1;
+                while (mSegments.size() > i) {
+                    mSegments.remove(mSegments.size() - 1);
+                    mSegmentOffsets.remove(mSegmentOffsets.size() - 1);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of segments in the file.
+     */
+    public int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Writes the index and syncs the file to storage.  The file is complete afterwards.
+     */
+    public void finish() throws IOException {
+        if (mWriter == null || mIndexStart >= 0) {
+            return;
+        }
+        mIndexStart = mWriter.getPosition();
+        mWriter.finish();
+        mOut.getFD().sync();
+    }
+
+    /**
+     * Closes the file.  Whatever was appended stays playable.
+     */
+    public void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ioe) {
+                // nothing left to do with it
+            }
+            mOut = null;
+        }
+        mWriter = null;
+    }
+
+    private void rewind(long position) throws IOException {
+        mWriter.rewindTo(position);
+        mOut.getChannel().truncate(position);
+    }
+}
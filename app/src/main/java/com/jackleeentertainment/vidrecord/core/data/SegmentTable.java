@@ -0,0 +1,96 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.util.ArrayList;
+
+/**
+ * The segments of a recording session, oldest first.
+ * <p/>
+ * Only the encoder thread opens, closes and removes segments; other threads may read.  At
+ * most the last segment is open.
+ */
+public class SegmentTable {
+
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+    /**
+     * Opens a segment at the ring's current head.  Closes the previous one if it's still
+     * open.
+     */
+    public synchronized Segment open(PacketRing ring) {
+        Segment last = getLast();
+        if (last != null && last.isOpen()) {
+            close(ring);
+        }
+        Segment segment = new Segment(ring.getHeadSeq());
+        mSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Closes the open segment at the ring's current head.  Returns the closed segment, or
+     * null if none was open.
+     */
+    public synchronized Segment close(PacketRing ring) {
+        Segment open = getLast();
+        if (open == null || !open.isOpen()) {
+            return null;
+        }
+        PacketRing.Snapshot snapshot = ring.snapshot();
+        // The start of a long segment may have been evicted already.
+        long firstSeq = Math.max(open.firstSeq, snapshot.tailSeq);
+        long endSeq = Math.max(firstSeq, snapshot.headSeq);
+
+        Segment closed;
+        if (endSeq == firstSeq) {
+            closed = new Segment(firstSeq, endSeq, -1, -1, 0, 0, 0, 0, -1);
+        } else {
+            int firstSlot = ring.slotOf(firstSeq);
+            int lastSlot = ring.slotOf(endSeq - 1);
+            long keyFrameSeq = ring.getSyncSeqAtOrAfter(snapshot, firstSeq);
+            closed = new Segment(firstSeq, endSeq, firstSlot, lastSlot,
+                    ring.getStart(firstSlot), ring.getStart(lastSlot) + ring.getLength(lastSlot),
+                    ring.getPtsUsec(firstSlot), ring.getPtsUsec(lastSlot),
+                    keyFrameSeq < endSeq ? keyFrameSeq : -1);
+        }
+        mSegments.set(mSegments.size() - 1, closed);
+        return closed;
+    }
+
+    /**
+     * Removes and returns the last segment, or null if there are none.  Doesn't touch the
+     * ring; see {@link PacketRing#truncateTo(long)}.
+     */
+    public synchronized Segment removeLast() {
+        if (mSegments.isEmpty()) {
+            return null;
+        }
+        return mSegments.remove(mSegments.size() - 1);
+    }
+
+    public synchronized void clear() {
+        mSegments.clear();
+    }
+
+    public synchronized int size() {
+        return mSegments.size();
+    }
+
+    public synchronized Segment get(int index) {
+        return mSegments.get(index);
+    }
+
+    public synchronized Segment getLast() {
+        return mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+    }
+
+    /**
+     * Returns the summed duration of the closed segments.
+     */
+    public synchronized long getTotalDurationUsec() {
+        long total = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            total += mSegments.get(i).getDurationUsec();
+        }
+        return total;
+    }
+}
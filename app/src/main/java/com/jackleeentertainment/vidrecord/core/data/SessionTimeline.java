@@ -0,0 +1,178 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.util.ArrayList;
+
+/**
+ * The timeline of a recording session, shared by the video and audio tracks.
+ * <p/>
+ * Capture times are microseconds on CLOCK_MONOTONIC, the clock of System.nanoTime() and of
+ * AudioTimestamp.TIMEBASE_MONOTONIC.  Camera SurfaceTexture timestamps may be on another
+ * clock; they go through {@link CameraClock} first.  Each press of the record button
+ * is a {@link Run} from {@link #begin} to {@link #end}; the pauses between runs are left out,
+ * so on the session timeline every run starts exactly where the previous one ended.  Within a
+ * run capture time is divided by the run's recording speed.
+ * <p/>
+ * Video and audio are both stamped from here, so they stay aligned across any number of
+ * segments.  Runs start and end on the render thread; the encoder and audio threads look
+ * them up.  No Android dependencies.
+ */
+public class SessionTimeline {
+
+    /**
+     * One uninterrupted stretch of recording.  Immutable; {@link #end} replaces the open run.
+     */
+    public static class Run {
+        // Never reused by the timeline, even across reset(), so a run that replaces a deleted
+        // one can be told apart.
+        public final long id;
+        public final long startUsec;
+        // Long.MAX_VALUE while the run is open.
+        public final long endUsec;
+        public final long sessionStartUsec;
+        public final float speed;
+
+        Run(long id, long startUsec, long endUsec, long sessionStartUsec, float speed) {
+            this.id = id;
+            this.startUsec = startUsec;
+            this.endUsec = endUsec;
+            this.sessionStartUsec = sessionStartUsec;
+            this.speed = speed;
+        }
+
+        public boolean isOpen() {
+            return endUsec == Long.MAX_VALUE;
+        }
+
+        public boolean contains(long captureUsec) {
+            return captureUsec >= startUsec && captureUsec < endUsec;
+        }
+
+        /**
+         * Returns the session time of captureUsec, clamped to the run.
+         */
+        public long toSessionUsec(long captureUsec) {
+            long offsetUsec = Math.max(0, Math.min(captureUsec, endUsec) - startUsec);
+            return sessionStartUsec + (long) (offsetUsec / (double) speed);
+        }
+
+        /**
+         * Returns where the next run starts on the session timeline.  Open runs haven't ended.
+         */
+        public long getSessionEndUsec() {
+            return isOpen() ? Long.MAX_VALUE : toSessionUsec(endUsec);
+        }
+
+        @Override
+        public String toString() {
+            return "Run " + id + ": " + startUsec + ".." + (isOpen() ? "" : endUsec) +
+                    " at " + sessionStartUsec + " x" + speed;
+        }
+    }
+
+    private final ArrayList<Run> mRuns = new ArrayList<Run>();
+    private long mNextId = 0;
+
+    /**
+     * Starts a run at captureUsec.  Ends the previous one first if it's still open.
+     *
+     * @param speed Recording speed; see GlobalSetting.AudioSpeed.
+     */
+    public synchronized Run begin(long captureUsec, float speed) {
+        Run last = getLast();
+        if (last != null && last.isOpen()) {
+            last = end(captureUsec);
+        }
+        long sessionStartUsec = 0;
+        if (last != null) {
+            // The clock is monotonic, but don't let a bad timestamp overlap two runs.
+            captureUsec = Math.max(captureUsec, last.endUsec);
+            sessionStartUsec = last.getSessionEndUsec();
+        }
+        Run run = new Run(mNextId++, captureUsec, Long.MAX_VALUE, sessionStartUsec, speed);
+        mRuns.add(run);
+        return run;
+    }
+
+    /**
+     * Ends the open run at captureUsec.  Returns it, or null if none was open.
+     */
+    public synchronized Run end(long captureUsec) {
+        Run open = getLast();
+        if (open == null || !open.isOpen()) {
+            return null;
+        }
+        Run closed = new Run(open.id, open.startUsec, Math.max(captureUsec, open.startUsec),
+                open.sessionStartUsec, open.speed);
+        mRuns.set(mRuns.size() - 1, closed);
+        return closed;
+    }
+
+    /**
+     * Removes and returns the last run, or null if there are none.  The next run takes its
+     * place on the session timeline.
+     */
+    public synchronized Run removeLast() {
+        if (mRuns.isEmpty()) {
+            return null;
+        }
+        return mRuns.remove(mRuns.size() - 1);
+    }
+
+    /**
+     * Starts a new session: forgets every run, and the next one starts at 0.
+     */
+    public synchronized void reset() {
+        mRuns.clear();
+    }
+
+    public synchronized int size() {
+        return mRuns.size();
+    }
+
+    public synchronized Run get(int index) {
+        return mRuns.get(index);
+    }
+
+    public synchronized Run getLast() {
+        return mRuns.isEmpty() ? null : mRuns.get(mRuns.size() - 1);
+    }
+
+    /**
+     * Returns the run that contains captureUsec, or null if it falls in a pause.
+     */
+    public synchronized Run getRunAt(long captureUsec) {
+        return getRunOverlapping(captureUsec, captureUsec + 1);
+    }
+
+    /**
+     * Returns the first run that overlaps [fromUsec, toUsec), or null.  Lookups are nearly
+     * always of recent captures, so the search runs newest first.
+     */
+    public synchronized Run getRunOverlapping(long fromUsec, long toUsec) {
+        Run found = null;
+        for (int i = mRuns.size() - 1; i >= 0; i--) {
+            Run run = mRuns.get(i);
+            if (run.endUsec <= fromUsec) {
+                break;
+            }
+            if (run.startUsec < toUsec) {
+                found = run;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the session time of a capture.  A capture in a pause maps to where the pause
+     * was cut, i.e. the start of the next run; one before the first run maps to 0.
+     */
+    public synchronized long toSessionUsec(long captureUsec) {
+        for (int i = mRuns.size() - 1; i >= 0; i--) {
+            Run run = mRuns.get(i);
+            if (captureUsec >= run.startUsec) {
+                return run.toSessionUsec(captureUsec);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,218 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+/**
+ * Streaming time-stretch for 16-bit PCM: changes the speed, keeps the pitch.
+ * <p/>
+ * WSOLA (waveform-similarity overlap-add).  Input is cut into sequences of
+ * {@link #SEQUENCE_MSEC}; consecutive sequences are cross-faded over {@link #OVERLAP_MSEC}.
+ * Each new sequence starts speed times further along the input than the output advances, and
+ * within {@link #SEEK_MSEC} of that the start that best matches the previous sequence's tail is
+ * picked, so the waveforms line up and the joins don't click.
+ * <p/>
+ * Works on interleaved short[] blocks and allocates nothing once the buffers have grown to the
+ * block size in use.  One thread only.  No Android dependencies.
+ */
+public class TimeStretcher {
+    public static final int SEQUENCE_MSEC = 40;
+    public static final int OVERLAP_MSEC = 8;
+    public static final int SEEK_MSEC = 15;
+
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 4.0f;
+
+    private final int channelCount;
+    private final int sequenceFrames;
+    private final int overlapFrames;
+    private final int seekFrames;
+
+    private float speed = 1.0f;
+    private double nominalSkip;
+    private double skipFraction;
+
+    // Pending input: frames [inputPos, inputFrames) of input.  inputPos may run past
+    // inputFrames at high speeds; the difference is skipped as more input arrives.
+    private short[] input;
+    private int inputFrames;
+    private int inputPos;
+
+    // Pending output: samples [outputStart, outputEnd) of output.
+    private short[] output;
+    private int outputStart;
+    private int outputEnd;
+
+    // Tail of the previous sequence, cross-faded into the next one.
+    private final short[] overlap;
+    private boolean hasOverlap;
+
+    public TimeStretcher(int sampleRate, int channelCount) {
+        this.channelCount = channelCount;
+        sequenceFrames = sampleRate * SEQUENCE_MSEC / 1000;
+        overlapFrames = sampleRate * OVERLAP_MSEC / 1000;
+        seekFrames = sampleRate * SEEK_MSEC / 1000;
+        overlap = new short[overlapFrames * channelCount];
+        input = new short[(sequenceFrames + seekFrames) * 2 * channelCount];
+        output = new short[sequenceFrames * 2 * channelCount];
+        setSpeed(1.0f);
+    }
+
+    /**
+     * Sets the playback speed: 2.0 makes the output half as long.  Clamped to
+     * [{@link #MIN_SPEED}, {@link #MAX_SPEED}].  Takes effect from the next sequence.
+     */
+    public void setSpeed(float speed) {
+        this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        nominalSkip = this.speed * (sequenceFrames - overlapFrames);
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Adds interleaved samples and processes as much as possible.
+     */
+    public void putSamples(short[] src, int offset, int count) {
+        int frames = count / channelCount;
+        compactInput();
+        if ((inputFrames + frames) * channelCount > input.length) {
+            short[] grown = new short[(inputFrames + frames) * channelCount * 2];
+            System.arraycopy(input, 0, grown, 0, inputFrames * channelCount);
+            input = grown;
+        }
+        System.arraycopy(src, offset, input, inputFrames * channelCount, frames * channelCount);
+        inputFrames += frames;
+        process();
+    }
+
+    /**
+     * Returns the number of output samples ready to be received.
+     */
+    public int getOutputAvailable() {
+        return outputEnd - outputStart;
+    }
+
+    /**
+     * Copies up to maxCount ready output samples into dst.
+     *
+     * @return The number of samples copied.
+     */
+    public int receiveSamples(short[] dst, int offset, int maxCount) {
+        int count = Math.min(maxCount, outputEnd - outputStart);
+        count -= count % channelCount;
+        System.arraycopy(output, outputStart, dst, offset, count);
+        outputStart += count;
+        return count;
+    }
+
+    /**
+     * Drops all pending input and output, e.g. when the speed goes back to 1.0 and the input
+     * bypasses the stretcher.
+     */
+    public void clear() {
+        inputFrames = 0;
+        inputPos = 0;
+        outputStart = 0;
+        outputEnd = 0;
+        hasOverlap = false;
+        skipFraction = 0;
+    }
+
+    private void process() {
+        final int ch = channelCount;
+        final int sequenceOut = sequenceFrames - overlapFrames;
+        while (inputFrames - inputPos >= sequenceFrames + seekFrames) {
+            int start = inputPos + (hasOverlap ? seekBestOverlap(inputPos) : 0);
+            reserveOutput(sequenceOut * ch);
+
+            int in = start * ch;
+            int out = outputEnd;
+            int overlapSamples = overlapFrames * ch;
+            if (hasOverlap) {
+                // Linear cross-fade from the previous tail into the new sequence.
+                for (int i = 0; i < overlapSamples; i++) {
+                    int frame = i / ch;
+                    output[out + i] = (short) ((overlap[i] * (overlapFrames - frame) +
+                            input[in + i] * frame) / overlapFrames);
+                }
+            } else {
+                System.arraycopy(input, in, output, out, overlapSamples);
+            }
+            int middleSamples = (sequenceFrames - 2 * overlapFrames) * ch;
+            System.arraycopy(input, in + overlapSamples, output, out + overlapSamples,
+                    middleSamples);
+            outputEnd += sequenceOut * ch;
+
+            System.arraycopy(input, in + overlapSamples + middleSamples, overlap, 0,
+                    overlapSamples);
+            hasOverlap = true;
+
+            skipFraction += nominalSkip;
+            int skip = (int) skipFraction;
+            skipFraction -= skip;
+            inputPos += skip;
+        }
+    }
+
+    /**
+     * Returns the offset in [0, seekFrames) from pos where the input best matches the previous
+     * sequence's tail: highest cross-correlation, normalized by the candidate's energy.
+     */
+    private int seekBestOverlap(int pos) {
+        final short[] in = input;
+        final short[] tail = overlap;
+        final int ch = channelCount;
+        final int samples = overlapFrames * ch;
+        int base = pos * ch;
+
+        long energy = 0;
+        for (int i = 0; i < samples; i++) {
+            int s = in[base + i];
+            energy += s * s;
+        }
+
+        int best = 0;
+        double bestScore = -Double.MAX_VALUE;
+        for (int offset = 0; offset < seekFrames; offset++) {
+            int at = base + offset * ch;
+            long corr = 0;
+            for (int i = 0; i < samples; i++) {
+                corr += tail[i] * in[at + i];
+            }
+            double score = corr / Math.sqrt(energy + 1.0);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+            // Slide the energy window one frame on.
+            for (int c = 0; c < ch; c++) {
+                int out = in[at + c];
+                int next = in[at + samples + c];
+                energy += next * next - out * out;
+            }
+        }
+        return best;
+    }
+
+    private void compactInput() {
+        int shift = Math.min(inputPos, inputFrames);
+        if (shift > 0) {
+            System.arraycopy(input, shift * channelCount, input, 0,
+                    (inputFrames - shift) * channelCount);
+            inputFrames -= shift;
+            inputPos -= shift;
+        }
+    }
+
+    private void reserveOutput(int count) {
+        if (outputStart > 0) {
+            System.arraycopy(output, outputStart, output, 0, outputEnd - outputStart);
+            outputEnd -= outputStart;
+            outputStart = 0;
+        }
+        if (outputEnd + count > output.length) {
+            short[] grown = new short[(outputEnd + count) * 2];
+            System.arraycopy(output, 0, grown, 0, outputEnd);
+            output = grown;
+        }
+    }
+}
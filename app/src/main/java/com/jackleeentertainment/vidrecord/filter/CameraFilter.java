@@ -7,6 +7,7 @@ import android.opengl.GLES20;
 
 import com.jackleeentertainment.vidrecord.R;
 import com.jackleeentertainment.vidrecord.grafika.gles.GlUtil;
+import com.jackleeentertainment.vidrecord.grafika.gles.ProgramCache;
 
 import java.nio.FloatBuffer;
 
@@ -239,7 +240,7 @@ public class CameraFilter extends AbstractFilter implements IFilter {
 
     @Override
     public void releaseProgram() {
-        GLES20.glDeleteProgram(mGLProgId);
+        ProgramCache.releaseProgram(mGLProgId);
         mGLProgId = -1;
     }
 
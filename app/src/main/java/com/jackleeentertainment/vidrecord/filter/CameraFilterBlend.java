@@ -68,4 +68,9 @@ public class CameraFilterBlend extends CameraFilter {
         super.unbindTexture();
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
+
+    @Override public void releaseProgram() {
+        GLES20.glDeleteTextures(1, new int[] { mExtraTextureId }, 0);
+        super.releaseProgram();
+    }
 }
\ No newline at end of file
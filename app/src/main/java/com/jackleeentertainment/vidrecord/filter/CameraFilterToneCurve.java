@@ -113,6 +113,11 @@ public class CameraFilterToneCurve extends CameraFilter {
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
+    @Override public void releaseProgram() {
+        GLES20.glDeleteTextures(1, new int[] { mToneCurveTextureId }, 0);
+        super.releaseProgram();
+    }
+
     ///////////////////////
 
     private short readShort(InputStream input) throws IOException {
@@ -1,10 +1,14 @@
 package com.jackleeentertainment.vidrecord.filter;
 
 import android.content.Context;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import com.jackleeentertainment.vidrecord.R;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class FilterManager {
 
@@ -92,6 +96,55 @@ public class FilterManager {
         }
     }
     public static String TAG = "FilterManager";
+
+    // Tone curve lookup texture, 256x1 RGBA.
+    private static final int TONE_CURVE_BYTES = 256 * 4;
+    private static int sMaskBytes = -1;
+
+    /**
+     * Returns the filter types next to filterType in the filter strip, nearest first, up to
+     * radius on each side.  The strip lists them in FilterType order.
+     */
+    public static List<FilterType> getNeighbours(FilterType filterType, int radius) {
+        FilterType[] types = FilterType.values();
+        List<FilterType> neighbours = new ArrayList<>();
+        for (int i = 1; i <= radius; i++) {
+            if (filterType.ordinal() + i < types.length) {
+                neighbours.add(types[filterType.ordinal() + i]);
+            }
+            if (filterType.ordinal() - i >= 0) {
+                neighbours.add(types[filterType.ordinal() - i]);
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * Estimates the GPU memory a camera filter of this type holds: the textures it uploads.
+     * Programs aren't counted, ProgramCache shares them.
+     */
+    public static int getGpuBytes(FilterType filterType, Context context) {
+        switch (filterType) {
+            case Blend:
+            case SoftLight:
+                return getMaskBytes(context);
+            case Normal:
+                return 0;
+            default:
+                return TONE_CURVE_BYTES;
+        }
+    }
+
+    private static synchronized int getMaskBytes(Context context) {
+        if (sMaskBytes < 0) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inScaled = false;
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(context.getResources(), R.drawable.mask, options);
+            sMaskBytes = Math.max(0, options.outWidth * options.outHeight * 4);
+        }
+        return sMaskBytes;
+    }
 //    public static IFilter getImageFilter(FilterType filterType, Context context) {
 //        Log.d(TAG, "getImageFilter(FilterType filterType, Context context)");
 //        switch (filterType) {
@@ -0,0 +1,204 @@
+package com.jackleeentertainment.vidrecord.filter;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jackleeentertainment.vidrecord.grafika.gles.EglCore;
+import com.jackleeentertainment.vidrecord.grafika.gles.OffscreenSurface;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Camera filters kept after use, one per FilterType, so switching to one that's been used or
+ * warmed up is a pointer swap instead of parsing curves, decoding the mask, uploading
+ * textures and building programs in the draw loop.
+ * <p/>
+ * Least recently used filters are released once the pool holds more than its budget of
+ * estimated GPU memory (see {@link FilterManager#getGpuBytes}); the one in use never is.
+ * {@link #warmUp} builds filters ahead on a "JaehakFilterWarmup" thread, whose EGL context
+ * shares textures and programs with the render thread's.
+ * <p/>
+ * Create, use and release on the render thread, with its EGL context current.
+ */
+public class FilterPool {
+    private static final String TAG = "FilterPool";
+    private static final Object WARM_UP_TOKEN = new Object();
+
+    private final Context appContext;
+    private final long budgetBytes;
+
+    // In access order: least recently used first.
+    private final LinkedHashMap<FilterManager.FilterType, IFilter> mFilters =
+            new LinkedHashMap<FilterManager.FilterType, IFilter>(16, 0.75f, true);
+    private long usedBytes;
+    private FilterManager.FilterType mInUse;
+
+    private final HandlerThread warmUpThread;
+    private final Handler warmUpHandler;
+    // Warm-up thread only.  Null if the shared context couldn't be made.
+    private EglCore warmUpEglCore;
+    private OffscreenSurface warmUpSurface;
+
+    public FilterPool(Context context, long budgetBytes) {
+        appContext = context.getApplicationContext();
+        this.budgetBytes = budgetBytes;
+
+        final EGLContext sharedContext = EGL14.eglGetCurrentContext();
+        warmUpThread = new HandlerThread("JaehakFilterWarmup");
+        warmUpThread.start();
+        warmUpHandler = new Handler(warmUpThread.getLooper());
+        warmUpHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Same flags as the render thread, so the contexts can share.
+                    warmUpEglCore = new EglCore(sharedContext,
+                            EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+                    warmUpSurface = new OffscreenSurface(warmUpEglCore, 1, 1);
+                    warmUpSurface.makeCurrent();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "no shared context, filters won't be warmed up", e);
+                    releaseWarmUpGl();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the filter for a type, building it now if it isn't pooled, and marks it as the
+     * one in use.
+     */
+    public IFilter acquire(FilterManager.FilterType type) {
+        IFilter filter;
+        synchronized (mFilters) {
+            mInUse = type;
+            filter = mFilters.get(type);
+        }
+        if (filter != null) {
+            return filter;
+        }
+        return put(type, FilterManager.getCameraFilter(type, appContext));
+    }
+
+    /**
+     * Builds these filters on the warm-up thread, in order, unless they're pooled.  Replaces
+     * the warm-ups still waiting from the last call.
+     */
+    public void warmUp(List<FilterManager.FilterType> types) {
+        warmUpHandler.removeCallbacksAndMessages(WARM_UP_TOKEN);
+        for (final FilterManager.FilterType type : types) {
+            warmUpHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    warmUpOnThread(type);
+                }
+            }, WARM_UP_TOKEN, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Stops warming up and forgets the pool.  Call before the render thread releases its
+     * EGL context; the filters' GL objects go with it.
+     */
+    public void release() {
+        warmUpHandler.removeCallbacksAndMessages(WARM_UP_TOKEN);
+        warmUpHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseWarmUpGl();
+            }
+        });
+        warmUpThread.quitSafely();
+        try {
+            warmUpThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Warm-up thread join() was interrupted", ie);
+        }
+        synchronized (mFilters) {
+            mFilters.clear();
+            usedBytes = 0;
+            mInUse = null;
+        }
+    }
+
+    private void warmUpOnThread(FilterManager.FilterType type) {
+        if (warmUpEglCore == null) {
+            return;
+        }
+        synchronized (mFilters) {
+            if (mFilters.containsKey(type)) {
+                return;
+            }
+        }
+        IFilter filter;
+        try {
+            filter = FilterManager.getCameraFilter(type, appContext);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "can't warm up " + type, e);
+            return;
+        }
+        // Uploads must be complete before the render thread's context samples them.
+        GLES20.glFinish();
+        put(type, filter);
+    }
+
+    /**
+     * Pools a newly built filter and returns the pooled one, which is another if its type
+     * got pooled meanwhile.  Releases what no longer fits, on the calling thread's context.
+     */
+    private IFilter put(FilterManager.FilterType type, IFilter filter) {
+        List<IFilter> released = new ArrayList<IFilter>();
+        IFilter pooled;
+        synchronized (mFilters) {
+            pooled = mFilters.get(type);
+            if (pooled == null) {
+                pooled = filter;
+                mFilters.put(type, filter);
+                usedBytes += FilterManager.getGpuBytes(type, appContext);
+                evictLocked(released);
+            }
+        }
+        if (pooled != filter) {
+            released.add(filter);
+        }
+        for (IFilter f : released) {
+            f.releaseProgram();
+        }
+        return pooled;
+    }
+
+    private void evictLocked(List<IFilter> released) {
+        Iterator<Map.Entry<FilterManager.FilterType, IFilter>> it =
+                mFilters.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<FilterManager.FilterType, IFilter> entry = it.next();
+            if (entry.getKey() == mInUse) {
+                continue;
+            }
+            usedBytes -= FilterManager.getGpuBytes(entry.getKey(), appContext);
+            released.add(entry.getValue());
+            it.remove();
+        }
+    }
+
+    private void releaseWarmUpGl() {
+        if (warmUpSurface != null) {
+            warmUpSurface.release();
+            warmUpSurface = null;
+        }
+        if (warmUpEglCore != null) {
+            warmUpEglCore.release();
+            warmUpEglCore = null;
+        }
+    }
+}
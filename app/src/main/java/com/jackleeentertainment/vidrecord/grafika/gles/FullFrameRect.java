@@ -98,6 +98,15 @@ public class FullFrameRect {
         mFilter = newFilter;
     }
 
+    /**
+     * Changes the program without releasing the previous one, which the caller still owns.
+     * <p>
+     * The appropriate EGL context must be current.
+     */
+    public void swapProgram(IFilter newFilter) {
+        mFilter = newFilter;
+    }
+
     /**
      * Creates a texture object suitable for use with drawFrameWithFilter().
      */
@@ -58,17 +58,15 @@ public class GlUtil {
      *CameraFilter - GlUtil
      *
      *******************************/
+    /**
+     * Returns the program built from two raw resources, or 0 on failure.  Reused from
+     * {@link ProgramCache} while one is attached; release it with
+     * {@link ProgramCache#releaseProgram}.
+     */
     public static int createProgram(Context applicationContext, @RawRes int vertexSourceRawId,
                                     @RawRes int fragmentSourceRawId) {
-        Log.d(TAG, "createProgram(Context applicationContext, @RawRes int vertexSourceRawId,\n" +
-                "                                    @RawRes int fragmentSourceRawId)");
-        String vertexSource = readTextFromRawResource(applicationContext, vertexSourceRawId);
-        String fragmentSource = readTextFromRawResource(applicationContext, fragmentSourceRawId);
-
-        Log.d(TAG, vertexSource);
-        Log.d(TAG, fragmentSource);
-
-        return createProgram(vertexSource, fragmentSource);
+        return ProgramCache.getProgram(applicationContext, vertexSourceRawId,
+                fragmentSourceRawId);
     }
 
     public static String readTextFromRawResource(final Context applicationContext,
@@ -153,6 +151,18 @@ public class GlUtil {
      * @return A handle to the program, or 0 on failure.
      */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        return createProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * Creates a new program from the supplied vertex and fragment shaders.
+     *
+     * @param isBinaryRetrievable Hint before linking that glGetProgramBinary will be called
+     *                            (GLES3 only), so the driver keeps a binary to hand out.
+     * @return A handle to the program, or 0 on failure.
+     */
+    public static int createProgram(String vertexSource, String fragmentSource,
+                                    boolean isBinaryRetrievable) {
 
         Log.d(TAG, "createProgram(String vertexSource, String fragmentSource)");
 
@@ -174,6 +184,11 @@ public class GlUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        if (isBinaryRetrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+            checkGlError("glProgramParameteri");
+        }
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
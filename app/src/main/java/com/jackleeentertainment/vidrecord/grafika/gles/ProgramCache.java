@@ -0,0 +1,239 @@
+package com.jackleeentertainment.vidrecord.grafika.gles;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.RawRes;
+import android.util.Log;
+
+import com.jackleeentertainment.vidrecord.core.JTrace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Linked programs of the filters, keyed by their (vertex, fragment) raw resources, so that
+ * switching filters doesn't read, compile and link the shaders again.
+ * <p/>
+ * Programs belong to an EGL context: the render thread attaches the cache once its context
+ * is current, and detaches it before releasing the context.  Filters share the programs, so
+ * they set their uniforms on every draw and release them through {@link #releaseProgram}.
+ * <p/>
+ * On GLES3 each newly linked program is linked with GL_PROGRAM_BINARY_RETRIEVABLE_HINT, saved
+ * with glGetProgramBinary under the app's cache dir and loaded from there next time, so a cold
+ * start skips compiling too.  A saved
+ * binary is only used with the same shader sources, GL renderer and driver version, and is
+ * dropped if the driver refuses it.
+ * <p/>
+ * While no context is attached, programs are built and deleted one by one as before.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final boolean WARN = JTrace.RENDER >= JTrace.WARN;
+    private static final boolean DEBUG = JTrace.RENDER >= JTrace.DEBUG;
+    private static final String DIR_NAME = "programs";
+    private static final int FILE_VERSION = 1;
+
+    private static final HashMap<Long, Integer> sPrograms = new HashMap<Long, Integer>();
+    private static boolean isAttached = false;
+    // Null unless binaries can be saved.
+    private static File sBinaryDir;
+    private static String sDriver;
+
+    private ProgramCache() {}     // do not instantiate
+
+    /**
+     * Starts caching programs for the current EGL context.
+     *
+     * @param glVersion The context's GLES version; binaries are saved on 3 and up.
+     */
+    public static synchronized void attach(Context context, int glVersion) {
+        sPrograms.clear();
+        isAttached = true;
+        sBinaryDir = null;
+        if (glVersion >= 3) {
+            File dir = new File(context.getCacheDir(), DIR_NAME);
+            if (dir.isDirectory() || dir.mkdirs()) {
+                sBinaryDir = dir;
+                sDriver = GLES20.glGetString(GLES20.GL_RENDERER) + "\n" +
+                        GLES20.glGetString(GLES20.GL_VERSION);
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached programs.  They go away with the EGL context, which is about to be
+     * released.
+     */
+    public static synchronized void detach() {
+        sPrograms.clear();
+        isAttached = false;
+        sBinaryDir = null;
+    }
+
+    /**
+     * Returns the program built from two raw resources, or 0 on failure.  The EGL context
+     * must be current.
+     */
+    public static synchronized int getProgram(Context applicationContext,
+                                              @RawRes int vertexSourceRawId,
+                                              @RawRes int fragmentSourceRawId) {
+        Long key = ((long) vertexSourceRawId << 32) | (fragmentSourceRawId & 0xffffffffL);
+        Integer cached = isAttached ? sPrograms.get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+
+        String vertexSource =
+                GlUtil.readTextFromRawResource(applicationContext, vertexSourceRawId);
+        String fragmentSource =
+                GlUtil.readTextFromRawResource(applicationContext, fragmentSourceRawId);
+        if (!isAttached) {
+            return GlUtil.createProgram(vertexSource, fragmentSource);
+        }
+        int program = 0;
+        File file = null;
+        String digest = null;
+        if (sBinaryDir != null) {
+            file = new File(sBinaryDir, vertexSourceRawId + "_" + fragmentSourceRawId + ".bin");
+            digest = digest(sDriver + "\n" + vertexSource + "\n" + fragmentSource);
+            program = loadBinary(file, digest);
+        }
+        if (program == 0) {
+            // Binaries can only be retrieved from programs linked with the hint.
+            program = GlUtil.createProgram(vertexSource, fragmentSource, file != null);
+            if (program == 0) {
+                return 0;
+            }
+            if (file != null) {
+                saveBinary(program, file, digest);
+            }
+        }
+        sPrograms.put(key, program);
+        return program;
+    }
+
+    /**
+     * Deletes a program, unless it's cached.  The EGL context must be current.
+     */
+    public static synchronized void releaseProgram(int program) {
+        if (program <= 0 || sPrograms.containsValue(program)) {
+            return;
+        }
+        GLES20.glDeleteProgram(program);
+    }
+
+    private static String digest(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a program made from a saved binary, or 0 if there's none usable.
+     */
+    private static int loadBinary(File file, String digest) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int format;
+        byte[] bytes;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_VERSION || !digest.equals(in.readUTF())) {
+                if (DEBUG) Log.d(TAG, "stale binary " + file.getName());
+                return 0;
+            }
+            format = in.readInt();
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+        } catch (IOException e) {
+            if (WARN) Log.w(TAG, "can't read " + file.getName(), e);
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(bytes.length);
+        binary.put(bytes).position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, bytes.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] != GLES20.GL_TRUE) {
+            // Driver update, most likely.
+            if (DEBUG) Log.d(TAG, "binary refused: " + file.getName());
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    private static void saveBinary(int program, File file, String digest) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        if (values[0] <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(values[0]);
+        int[] length = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, values[0], length, 0, format, 0, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return;
+        }
+        byte[] bytes = new byte[length[0]];
+        binary.position(0);
+        binary.get(bytes);
+
+        // Write aside and rename, so a crash can't leave half a binary.
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(digest);
+            out.writeInt(format[0]);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            if (WARN) Log.w(TAG, "can't write " + file.getName(), e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+}
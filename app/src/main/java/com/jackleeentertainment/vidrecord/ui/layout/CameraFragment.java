@@ -3,13 +3,9 @@ package com.jackleeentertainment.vidrecord.ui.layout;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaPlayer;
 
-import android.opengl.GLES20;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
@@ -35,10 +31,11 @@ import android.widget.RelativeLayout;
 
 import com.jackleeentertainment.vidrecord.App;
 import com.jackleeentertainment.vidrecord.core.GlobalSetting;
+import com.jackleeentertainment.vidrecord.core.JTrace;
 import com.jackleeentertainment.vidrecord.core.camera.CameraUtils;
 import com.jackleeentertainment.vidrecord.core.data.EncoderBufferHolder;
-import com.jackleeentertainment.vidrecord.core.data.JTimeStamp;
 import com.jackleeentertainment.vidrecord.core.data.JaehakEncoder;
+import com.jackleeentertainment.vidrecord.core.data.Segment;
 import com.jackleeentertainment.vidrecord.R;
 import com.jackleeentertainment.vidrecord.grafika.AspectFrameLayout;
 import com.jackleeentertainment.vidrecord.ui.widget.Bar;
@@ -47,9 +44,6 @@ import com.jackleeentertainment.vidrecord.core.data.Grab;
 import com.jackleeentertainment.vidrecord.ui.widget.LVItemFilter;
 import com.jackleeentertainment.vidrecord.ui.widget.ProgressView;
 import com.jackleeentertainment.vidrecord.filter.FilterManager;
-import com.jackleeentertainment.vidrecord.grafika.gles.EglCore;
-import com.jackleeentertainment.vidrecord.grafika.gles.FullFrameRect;
-import com.jackleeentertainment.vidrecord.grafika.gles.WindowSurface;
 import com.sprylab.android.widget.TextureVideoView;
 
 import org.lucasr.twowayview.TwoWayView;
@@ -66,11 +60,11 @@ import java.util.LinkedList;
  */
 public class CameraFragment extends Fragment implements
         AdapterView.OnItemClickListener,
-        SurfaceHolder.Callback,
-        SurfaceTexture.OnFrameAvailableListener {
+        SurfaceHolder.Callback {
 
     // Base
     private static String TAG = "CameraFragment";
+    private static final boolean VERBOSE = JTrace.RENDER >= JTrace.VERBOSE;   // per frame
     private View view;
     private PowerManager.WakeLock mWakeLock;
 
@@ -97,42 +91,33 @@ public class CameraFragment extends Fragment implements
     static int selectedIntFacing = Camera.CameraInfo.CAMERA_FACING_FRONT;
 
     //GL
-    EglCore mEglCore;
-    WindowSurface surfaceSurfaceView_BpToSurfaceFlingerConsumer;
-    SurfaceTexture surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener;  // receives the output from the camera preview
-    WindowSurface windowSurface_BpToGraphicBufferSource;
-    FullFrameRect fullFrameRect;
-
-    int intOpenGLTextureName;
+    // Draws the preview and the recorded frames; owns all EGL/GL state.
+    RenderThread renderThread;
     boolean isSurfaceCreated = false;
     boolean isResumed = false;
-    private int mIncomingWidth, mIncomingHeight;
-    private final float[] mTmpMatrix = new float[16];
 
     //VideoFramesAndSettings
     public static int intTotalVideoLengthSeconds = 30;
-    private int mFrameNum;
     int intMaxRecordSec = 15;
     private boolean isVideoViewPrepared = false;
 
     //Encoder
+    private static final String ENCODER_SPILL_FILE_NAME = "encoder_ring.bin";  // mapped storage
     JaehakEncoder jaehakEncoder;
     boolean isPressingRecordBtn = false;
-    int intRecordedFrameNum = 0;
-    int byteArrayTotalDx = 0;
 
     //Filter
     FilterManager.FilterType mCurrentFilterType = FilterManager.FilterType.Normal;
-    FilterManager.FilterType mNewFilterType = null;
 
     //SaveVideo
     private File outputFile;
 
     private static class MainHandler extends Handler implements JaehakEncoder.Callback {
         public static final int MSG_BLINK_TEXT = 0;
-        public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_BUFFER_FULL = 4;
+        public static final int MSG_SEGMENT_DELETED = 5;
 
         private WeakReference<CameraFragment> mWeakFragment;
 
@@ -154,6 +139,18 @@ public class CameraFragment extends Fragment implements
         }
 
 
+        // JaehakEncoder.Callback, called on encoder thread
+        @Override
+        public void bufferFull() {
+            sendEmptyMessage(MSG_BUFFER_FULL);
+        }
+
+        // JaehakEncoder.Callback, called on encoder thread
+        @Override
+        public void segmentDeleted(Segment segment) {
+            sendMessage(obtainMessage(MSG_SEGMENT_DELETED, segment));
+        }
+
         @Override
         public void handleMessage(Message msg) {
             CameraFragment cameraFragment = mWeakFragment.get();
@@ -164,21 +161,6 @@ public class CameraFragment extends Fragment implements
 
             switch (msg.what) {
 
-                case MSG_FRAME_AVAILABLE: {
-                    /************************************************************************
-
-                     [ContinueosCaptureActivity : SurfaceTexture.OnFrameAvailableListener]
-
-                     @Override public void onFrameAvailable(SurfaceTexture surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener) {
-                     //Log.d(TAG, "frame available");
-                     mainHandler.sendEmptyMessage(MainHandler.MSG_FRAME_AVAILABLE);
-                     }
-
-                     ***********************************************************************/
-                    cameraFragment.drawFrameOntoSurfaceViewAndEncoderSurface();
-//                    activity.updateProgressBarJack(activity.isPressingRecordBtn);
-                    break;
-                }
                 case MSG_FILE_SAVE_COMPLETE: {
                     FullscreenActivity.isVideoSaved = true;
                     cameraFragment.fileSaveComplete(msg.arg1);
@@ -187,10 +169,18 @@ public class CameraFragment extends Fragment implements
                 case MSG_BUFFER_STATUS: {
                     long duration = (((long) msg.arg1) << 32) |
                             (((long) msg.arg2) & 0xffffffffL);
-                    Log.d(TAG, "handleMessage() MSG_BUFFER_STATUS " + String.valueOf(duration));
+                    if (VERBOSE) Log.v(TAG, "handleMessage() MSG_BUFFER_STATUS " + duration);
                     cameraFragment.updateBufferStatus(duration);
                     break;
                 }
+                case MSG_BUFFER_FULL: {
+                    cameraFragment.onBufferFull();
+                    break;
+                }
+                case MSG_SEGMENT_DELETED: {
+                    cameraFragment.onSegmentDeleted((Segment) msg.obj);
+                    break;
+                }
                 default:
                     throw new RuntimeException("Unknown message " + msg.what);
             }
@@ -274,33 +264,7 @@ public class CameraFragment extends Fragment implements
         Log.d(TAG, "onPause()");
         isResumed = false;
         super.onPause();
-        releaseCamera();
-
-        if (jaehakEncoder != null) {
-            jaehakEncoder.shutdown();
-            jaehakEncoder = null;
-        }
-        if (surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener != null) {
-            surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.release();
-            surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener = null;
-        }
-        if (surfaceSurfaceView_BpToSurfaceFlingerConsumer != null) {
-            surfaceSurfaceView_BpToSurfaceFlingerConsumer.release();
-            surfaceSurfaceView_BpToSurfaceFlingerConsumer = null;
-        }
-        if (fullFrameRect != null) {
-            fullFrameRect.release(false);
-            fullFrameRect = null;
-        }
-        if (mEglCore != null) {
-            mEglCore.release();
-            mEglCore = null;
-        }
-
-        if (mWakeLock != null) {
-            mWakeLock.release();
-            mWakeLock = null;
-        }
+        releaseCameraAndEncoder();
         Log.d(TAG, "onPause() done");
     }
 
@@ -443,32 +407,7 @@ public class CameraFragment extends Fragment implements
                 //(1) Stop Preview &Release
                 Log.d(TAG, "Pause camera...");
                 isResumed = false;
-                releaseCamera();
-
-                if (jaehakEncoder != null) {
-                    jaehakEncoder.shutdown();
-                    jaehakEncoder = null;
-                }
-                if (surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener != null) {
-                    surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.release();
-                    surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener = null;
-                }
-                if (surfaceSurfaceView_BpToSurfaceFlingerConsumer != null) {
-                    surfaceSurfaceView_BpToSurfaceFlingerConsumer.release();
-                    surfaceSurfaceView_BpToSurfaceFlingerConsumer = null;
-                }
-                if (fullFrameRect != null) {
-                    fullFrameRect.release(false);
-                    fullFrameRect = null;
-                }
-                if (mEglCore != null) {
-                    mEglCore.release();
-                    mEglCore = null;
-                }
-                if (mWakeLock != null) {
-                    mWakeLock.release();
-                    mWakeLock = null;
-                }
+                releaseCameraAndEncoder();
                 Log.d(TAG, "Pause camera... done");
 
                 //(2) Change CameraFacing
@@ -507,13 +446,11 @@ public class CameraFragment extends Fragment implements
                         v.setBackgroundDrawable(getActivity().getResources().getDrawable(R.drawable.ib_record_ontouch_down));
 
                         isPressingRecordBtn = true;
-                        JTimeStamp.onTouch();
 
                         //Create Bar
+                        renderThread.getHandler().sendStartRecording();
                         Bar bar = new Bar();
                         bar.setaTimeMill(System.currentTimeMillis());
-                        bar.setaAudioShortDx(lklShorts.size());
-                        bar.setaVideoDxOfByteArrayTotal(byteArrayTotalDx);
                         arlBar.add(bar);
 
                         //View
@@ -534,43 +471,11 @@ public class CameraFragment extends Fragment implements
                         Log.d(TAG, "ACTION_UP");
                         v.setBackgroundDrawable(getActivity().getResources().getDrawable(R.drawable.ib_record_ontouch_up));
 
-                        progressView.setCurrentState(ProgressView.State.PAUSE);
-
-                        Log.d(TAG, "intRecordedFrameNum : " + String.valueOf(intRecordedFrameNum));
-                        /**
-                         * Decode an immutable bitmap from the specified byte array.
-                         *
-                         * @param data byte array of compressed image data
-                         * @param offset offset into imageData for where the decoder should begin
-                         *               parsing.
-                         * @param length the number of bytes, beginning at offset, to parse
-                         * @return The decoded bitmap, or null if the image could not be decoded.
-                         */
-                        isPressingRecordBtn = false;
-
-//                        getLastFrameBitmap();
-                        JTimeStamp.offTouch();
-
-
-                        int lastDxRecordedInByteArrayTotal = EncoderBufferHolder.encBuffer
-                                .getHeadStart() - 1;
-                        Log.d(TAG, "lastDxRecordedInByteArrayTotal : " + String.valueOf(lastDxRecordedInByteArrayTotal));
-
-                        //Finish Bar
-                        arlBar.getLast().setbTimeMill(System.currentTimeMillis());
-                        arlBar.getLast().setbAudioShortDx(lklShorts.size() - 1);
-                        arlBar.getLast().setbVideoDxOfFrame(intRecordedFrameNum - 1);
-                        arlBar.getLast().setbVideoDxOfByteArrayTotal(lastDxRecordedInByteArrayTotal);
-
-
-                        //progressView
-                        long totalRecordedTime = 0;
-                        for (int i = 0; i < arlBar.size(); i++) {
-                            totalRecordedTime += (arlBar.get(i).getbTimeMill() - arlBar.get(i).getaTimeMill());
+                        if (isPressingRecordBtn) {
+                            // Not already stopped by a full encoder buffer.
+                            finishRecordingSegment();
                         }
 
-                        progressView.putProgressList(totalRecordedTime);
-
 //                        if (totalTime >= recordingMinimumTime) {
 //                            currentRecorderState = RecorderState.SUCCESS;
 //                            mHandler.sendEmptyMessage(2);
@@ -632,62 +537,64 @@ public class CameraFragment extends Fragment implements
         ibDelete.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (arlBar != null && arlBar.size() > 1) {
-                    Bar lastBar = arlBar.get(arlBar.size() - 1);
-                    Bar lastBar2 = arlBar.get(arlBar.size() - 2);
-
-                    //Delete Video ByteArray
-                    byte[] deductedByteArray = new byte[EncoderBufferHolder.encBuffer.getBaTotalSize()]; //22,500,000
-
-                    Log.d(TAG, "lastBar2.getbVideoDxOfByteArrayTotal() + 1 : " + String.valueOf(lastBar2.getbVideoDxOfByteArrayTotal() + 1));
-                    ByteBuffer bbDeducted = ByteBuffer.wrap(
-                            EncoderBufferHolder.encBuffer.getBaTotal(),
-                            0,
-                            lastBar2.getbVideoDxOfByteArrayTotal() + 1); // add one because it is length
-
-//                    bbDeducted.flip();
-                    Log.d(TAG,
-                            "bbDeducted.limit() : " + String.valueOf(bbDeducted.limit()) +
-                                    ", bbDeducted.array().length : " + String.valueOf(bbDeducted.array().length)
-
-                    );
-                    bbDeducted.get(deductedByteArray, 0, bbDeducted.limit()); //BufferUnderflowException - Unchecked exception thrown when a relative get operation reaches the source buffer's limit.
-                    EncoderBufferHolder.encBuffer.setBaTotal(deductedByteArray);
-                    EncoderBufferHolder.encBuffer.setBbTotal(bbDeducted);
-                    EncoderBufferHolder.encBuffer.setIntMetaHead(lastBar2.getbVideoDxOfFrame() + 1);
-
-                    //Delete arlShort Part
-                    while (lklShorts.size() > lastBar.getaAudioShortDx()) {
-                        lklShorts.remove(lklShorts.size() - 1);
-                    }
+                if (arlBar != null && arlBar.size() > 0) {
+                    //Delete Video and Audio, after the render thread has closed the segment
+                    renderThread.getHandler().sendDeleteLastSegment();
 
                     //Delete ProgressView Part
                     progressView.removeLastItemOfLinkedList();
                     arlBar.removeLast();
-                } else if (arlBar != null && arlBar.size() == 1) {
+                }
+            }
+        });
 
-                    Bar lastBar = arlBar.get(arlBar.size() - 1);
 
-                    //Delete Video ByteArray
-                    byte[] deductedByteArray = new byte[EncoderBufferHolder.encBuffer.getBaTotalSize()]; //22,500,000
-                    EncoderBufferHolder.encBuffer.setBaTotal(deductedByteArray);
-                    EncoderBufferHolder.encBuffer.setBbTotal(ByteBuffer.allocate(deductedByteArray.length));
-                    EncoderBufferHolder.encBuffer.setIntMetaHead(0);
+    }
 
-                    //Delete arlShort Part
-                    while (lklShorts.size() > lastBar.getaAudioShortDx()) {
-                        lklShorts.remove(lklShorts.size() - 1);
-                    }
+    /**
+     * Ends the segment being recorded: the record button was released, or the encoder buffer
+     * filled up.
+     */
+    private void finishRecordingSegment() {
+        progressView.setCurrentState(ProgressView.State.PAUSE);
+        isPressingRecordBtn = false;
 
-                    //Delete ProgressView Part
-                    progressView.removeLastItemOfLinkedList();
+//        getLastFrameBitmap();
+
+        // The render thread closes the segment after the last frame it sent; the encoder
+        // thread takes the exact packet boundary.
+        renderThread.getHandler().sendStopRecording();
+
+        //Finish Bar
+        arlBar.getLast().setbTimeMill(System.currentTimeMillis());
 
-                    arlBar = new LinkedList<Bar>();
-                }
-            }
-        });
 
+        //progressView
+        long totalRecordedTime = 0;
+        for (int i = 0; i < arlBar.size(); i++) {
+            totalRecordedTime += (arlBar.get(i).getbTimeMill() - arlBar.get(i).getaTimeMill());
+        }
+
+        progressView.putProgressList(totalRecordedTime);
+    }
 
+    /**
+     * Stops the preview, then the render thread, then the encoder: each one feeds the next.
+     */
+    private void releaseCameraAndEncoder() {
+        releaseCamera();
+        if (renderThread != null) {
+            renderThread.shutdown();
+            renderThread = null;
+        }
+        if (jaehakEncoder != null) {
+            jaehakEncoder.shutdown();
+            jaehakEncoder = null;
+        }
+        if (mWakeLock != null) {
+            mWakeLock.release();
+            mWakeLock = null;
+        }
     }
 
     private void releaseCamera() {
@@ -711,122 +618,38 @@ public class CameraFragment extends Fragment implements
 
         if (isSurfaceCreated && isResumed) {
             Log.d(TAG_openCamera, "isSurfaceCreated && isResumed");
-            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
-            surfaceSurfaceView_BpToSurfaceFlingerConsumer = new WindowSurface(
-                    mEglCore,
-                    surfaceHolder.getSurface(),
-                    false);
-            surfaceSurfaceView_BpToSurfaceFlingerConsumer.makeCurrent();
-
-            initFilter(mCurrentFilterType); // YET
-            fullFrameRect = new FullFrameRect(
-                    FilterManager.getCameraFilter(
-                            mCurrentFilterType,
-                            getActivity().getApplicationContext()));
-            intOpenGLTextureName = fullFrameRect.createTexture();
-
-            surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener = new SurfaceTexture(intOpenGLTextureName);
-            surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.setOnFrameAvailableListener(this);
 
-            try {
-                mCamera.setPreviewTexture(surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener);
-            } catch (IOException ioe) {
-                throw new RuntimeException(ioe);
-            }
-            mCamera.startPreview();
-
-
-            // TODO: adjust bit rate based on frame rate?
             // TODO: adjust video width/height based on what we're getting from the camera preview?
             //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
             try {
                 jaehakEncoder = new JaehakEncoder(
                         GlobalSetting.VIDEO_HEIGHT, //width Width of encoded video, in pixels.  Should be a multiple of 16.
                         GlobalSetting.VIDEO_WIDTH,//height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
-                        6000000, // Target bit rate, in bits.
+                        GlobalSetting.VIDEO_BIT_RATE, // Target bit rate, in bits.
                         mCameraPreviewThousandFps / 1000,//Expected frame rate.
                         intTotalVideoLengthSeconds,//desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+                        new File(getActivity().getCacheDir(), ENCODER_SPILL_FILE_NAME),
                         mainHandler);
+                if (GlobalSetting.isIncrementalSave) {
+                    jaehakEncoder.persistSegmentsTo(getOutputFile());
+                }
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
 
-            windowSurface_BpToGraphicBufferSource = new WindowSurface(
-                    mEglCore,
-                    jaehakEncoder.getInputSurface(),
-                    true);
-        }
-    }
-
+            Camera.Size previewSize = cameraParameters.getPreviewSize();
+            renderThread = new RenderThread(getActivity(), surfaceHolder.getSurface(),
+                    jaehakEncoder, previewSize.width, previewSize.height, mCurrentFilterType);
+            renderThread.start();
+            renderThread.waitUntilReady();
 
-    private void drawFrameOntoSurfaceViewAndEncoderSurface() {
-
-        if (mEglCore == null) {
-            Log.d(TAG, "Skipping drawFrameOntoSurfaceViewAndEncoderSurface after shutdown");
-            return;
-        }
-
-        // Latch the next frame from the camera.
-        /**
-         * Makes our EGL context current, using the supplied surface for both "draw" and "read".
-         */
-        surfaceSurfaceView_BpToSurfaceFlingerConsumer.makeCurrent(); // (1) Producer Set
-        surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.updateTexImage(); // JHE - To BBB?
-        surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.getTransformMatrix(mTmpMatrix);
-
-        // Fill the SurfaceView with it.
-        SurfaceView sv = (SurfaceView) view.findViewById(R.id.continuousCapture_CameraSurfaceView);
-        int intWidthOfSurfaceView = sv.getWidth();
-        int intHeightOfSurfaceView = sv.getHeight();
-
-        /**************************************
-         *
-         * CameraFilter - CameraRecordRenderer #onDrawFrame
-         *
-         *************************************/
-        GLES20.glViewport(0, 0, intWidthOfSurfaceView, intHeightOfSurfaceView);  // (2) Window Size Set
-        if (mNewFilterType != null && mNewFilterType != mCurrentFilterType) {
-            fullFrameRect.changeProgram(
-                    FilterManager.getCameraFilter(
-                            mNewFilterType,
-                            getActivity().getApplicationContext()
-                    )
-            );
-            mCurrentFilterType = mNewFilterType;
-        }
-        fullFrameRect.getFilter().setTextureSize(mIncomingWidth, mIncomingHeight);
-        fullFrameRect.drawFrameWithFilter(intOpenGLTextureName, mTmpMatrix);              // (3) Filter Set
-
-        // drawExtra(mFrameNum, intWidthOfSurfaceView, intHeightOfSurfaceView);
-        surfaceSurfaceView_BpToSurfaceFlingerConsumer.swapBuffers();            // (4) Producer Execute's Swap
-
-
-        if (isPressingRecordBtn) {
-
-            // Send it to the video encoder.
-            if (!GlobalSetting.mFileSaveInProgress) {
-                windowSurface_BpToGraphicBufferSource.makeCurrent(); // (1) Producer Set
-                GLES20.glViewport(0, 0, GlobalSetting.VIDEO_WIDTH, GlobalSetting.VIDEO_HEIGHT);        // (2) Window Size Set
-                // JHE - Filter Again?
-                fullFrameRect.drawFrameWithFilter(intOpenGLTextureName, mTmpMatrix); // (3) Filter Set
-                // drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-                jaehakEncoder.frameAvailableSoon();
-                windowSurface_BpToGraphicBufferSource.setPresentationTime(surfaceTexture_BcFrCameraSurf_ByCamaraSetPreviewTextureAndSetOnFrameAvailableListener.getTimestamp());
-                windowSurface_BpToGraphicBufferSource.swapBuffers(); // (4) Producer Execute's Swap
+            try {
+                mCamera.setPreviewTexture(renderThread.getCameraTexture());
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
             }
-
-            intRecordedFrameNum++;
-            Log.d(TAG, "JHE Recorded Frames : " + String.valueOf(intRecordedFrameNum));
-
-            byteArrayTotalDx = EncoderBufferHolder.encBuffer
-                    .getDxLaskPacketStart();
-            Log.d(TAG, "JHE byteArrayTotalDx : " + String.valueOf(byteArrayTotalDx));
-
-            /***********************
-             * ProgressView
-             **********************/
+            mCamera.startPreview();
         }
-        mFrameNum++;
     }
 
 
@@ -853,6 +676,9 @@ public class CameraFragment extends Fragment implements
         Log.d(TAG, "surfaceChanged()");
         Log.d(TAG, "surfaceChanged fmt=" + format + " size=" + width + "x" + height +
                 " holder=" + holder);
+        if (renderThread != null) {
+            renderThread.getHandler().sendSurfaceChanged(width, height);
+        }
 
     }
 
@@ -864,13 +690,6 @@ public class CameraFragment extends Fragment implements
         surfaceHolder = null;
     }
 
-    @Override   // SurfaceTexture.OnFrameAvailableListener; runs on arbitrary thread
-    public void onFrameAvailable(SurfaceTexture surfaceTexture_BufferConsumer_FromCameraSurface) {
-//        Log.d(TAG, "frame available");
-        mainHandler.sendEmptyMessage(MainHandler.MSG_FRAME_AVAILABLE);
-    }
-
-
     /************************
      * Click and Capture
      ************************/
@@ -977,12 +796,14 @@ public class CameraFragment extends Fragment implements
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         LVItemFilter itemFilter = filterBaseAdapter.getItem(position);
-        mNewFilterType = itemFilter.getFilterType();
+        mCurrentFilterType = itemFilter.getFilterType();
+        if (renderThread != null) {
+            renderThread.getHandler().sendSetFilter(mCurrentFilterType);
+        }
     }
 
 
     LinkedList<Bar> arlBar = new LinkedList<>();
-    LinkedList<short[]> lklShorts = new LinkedList<>();
 
     /**
      * The file save has completed.  We can resume recording.
@@ -1173,6 +994,25 @@ public class CameraFragment extends Fragment implements
         initOnClickListeners();
     }
 
+    /**
+     * The encoder buffer can't take more frames (STOP_RECORDING policy), so stop as if the
+     * record button had been released.
+     */
+    private void onBufferFull() {
+        Log.w(TAG, "onBufferFull()");
+        if (isPressingRecordBtn) {
+            ibRecord.setBackgroundDrawable(getActivity().getResources().getDrawable(R.drawable.ib_record_ontouch_up));
+            finishRecordingSegment();
+        }
+    }
+
+    /**
+     * The encoder removed a segment's video and audio.
+     */
+    private void onSegmentDeleted(Segment segment) {
+        Log.d(TAG, "onSegmentDeleted() " + segment);
+    }
+
     private void updateBufferStatus(long durationUsec) {
 //        floatSecondsOfVideo = durationUsec / 1000000.0f;
 //        updateControls();
@@ -0,0 +1,526 @@
+package com.jackleeentertainment.vidrecord.ui.layout;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.view.Surface;
+
+import com.jackleeentertainment.vidrecord.core.GlobalSetting;
+import com.jackleeentertainment.vidrecord.core.JTrace;
+import com.jackleeentertainment.vidrecord.core.data.CameraClock;
+import com.jackleeentertainment.vidrecord.core.data.JaehakEncoder;
+import com.jackleeentertainment.vidrecord.filter.FilterManager;
+import com.jackleeentertainment.vidrecord.filter.FilterPool;
+import com.jackleeentertainment.vidrecord.filter.IFilter;
+import com.jackleeentertainment.vidrecord.filter.ImageFilter;
+import com.jackleeentertainment.vidrecord.grafika.gles.EglCore;
+import com.jackleeentertainment.vidrecord.grafika.gles.FullFrameRect;
+import com.jackleeentertainment.vidrecord.grafika.gles.GlUtil;
+import com.jackleeentertainment.vidrecord.grafika.gles.ProgramCache;
+import com.jackleeentertainment.vidrecord.grafika.gles.WindowSurface;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Draws camera frames to the preview SurfaceView and, while recording, to the encoder's
+ * input Surface.
+ * <p/>
+ * All EGL and GL work happens on this thread, which owns the EglCore, the camera's
+ * SurfaceTexture and both WindowSurfaces; the UI thread only sends messages through
+ * {@link RenderHandler}.  Layout, touch handling and ProgressView's redraws can't delay a
+ * frame any more.
+ * <p/>
+ * Segments are opened and closed from here too, between frames, so a segment never misses
+ * or gains a frame around the record button.
+ * <p/>
+ * With GlobalSetting.isRenderOnce the filter draws into a texture at the encode resolution,
+ * and both surfaces get a plain copy of it, so a recorded frame pays for the filter once.
+ * GlobalSetting.fRenderScale shrinks that texture further; the copies scale it back up.
+ */
+public class RenderThread extends Thread {
+    private static final String TAG = "RenderThread";
+    private static final boolean DEBUG = JTrace.RENDER >= JTrace.DEBUG;
+    private static final boolean VERBOSE = JTrace.RENDER >= JTrace.VERBOSE;   // per frame
+
+    private static final float MIN_RENDER_SCALE = 0.25f;
+    // Filters on each side of the selected one in the strip to build ahead.
+    private static final int WARM_UP_RADIUS = 1;
+
+    private final Context appContext;
+    private final Surface displaySurface;
+    private final JaehakEncoder jaehakEncoder;
+    private final int incomingWidth;
+    private final int incomingHeight;
+    // Size the encoder was configured with.  CameraFragment swaps GlobalSetting.VIDEO_WIDTH
+    // and VIDEO_HEIGHT for it, so the filter output and the viewport follow the encoder.
+    private final int encoderWidth;
+    private final int encoderHeight;
+
+    private EglCore mEglCore;
+    private WindowSurface displayWindowSurface;
+    private WindowSurface encoderWindowSurface;
+    private SurfaceTexture cameraTexture;
+    private FullFrameRect fullFrameRect;
+    private FilterPool filterPool;
+    private int textureId;
+    private final float[] mTmpMatrix = new float[16];
+    private int displayWidth;
+    private int displayHeight;
+
+    // Offscreen target of the filter when isRenderOnce.
+    private int[] mFrameBuffer;
+    private int[] mFrameBufferTexture;
+    private int frameBufferWidth;
+    private int frameBufferHeight;
+    private FullFrameRect copyRect;
+
+    // Camera timestamps on System.nanoTime()'s clock, like the encoder's timeline.
+    private final CameraClock cameraClock = new CameraClock();
+
+    private FilterManager.FilterType mCurrentFilterType;
+    private boolean isRecording = false;
+    private int mFrameNum;
+    private int intRecordedFrameNum;
+
+    private RenderHandler renderHandler;
+    private final Object mLock = new Object();
+    private volatile boolean isReady = false;
+
+    /**
+     * @param displaySurface  The preview SurfaceView's Surface.
+     * @param jaehakEncoder   Takes the recorded frames.
+     * @param incomingWidth   Camera preview size, for filters that sample neighbours.
+     */
+    public RenderThread(Context context, Surface displaySurface, JaehakEncoder jaehakEncoder,
+                        int incomingWidth, int incomingHeight,
+                        FilterManager.FilterType filterType) {
+        super("JaehakRender");
+        appContext = context.getApplicationContext();
+        this.displaySurface = displaySurface;
+        this.jaehakEncoder = jaehakEncoder;
+        this.incomingWidth = incomingWidth;
+        this.incomingHeight = incomingHeight;
+        encoderWidth = jaehakEncoder.getWidth();
+        encoderHeight = jaehakEncoder.getHeight();
+        mCurrentFilterType = filterType;
+    }
+
+    /**
+     * Thread entry point.  Sets up EGL and the camera texture, signals that we're ready, and
+     * handles messages until shutdown.
+     */
+    @Override
+    public void run() {
+        Looper.prepare();
+        renderHandler = new RenderHandler(this);    // must create on render thread
+        prepareGl();
+        synchronized (mLock) {
+            isReady = true;
+            mLock.notify();    // signal waitUntilReady()
+        }
+
+        Looper.loop();
+
+        Log.d(TAG, "looper quit");
+        releaseGl();
+        synchronized (mLock) {
+            isReady = false;
+            renderHandler = null;
+        }
+    }
+
+    private void prepareGl() {
+        // GLES3 where there is one, for program binaries; the shaders are all GLES2.
+        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        displayWindowSurface = new WindowSurface(mEglCore, displaySurface, false);
+        displayWindowSurface.makeCurrent();
+        displayWidth = displayWindowSurface.getWidth();
+        displayHeight = displayWindowSurface.getHeight();
+        if (GlobalSetting.isProgramCache) {
+            ProgramCache.attach(appContext, mEglCore.getGlVersion());
+        }
+
+        IFilter filter;
+        if (GlobalSetting.isFilterPool) {
+            filterPool = new FilterPool(appContext, GlobalSetting.intFilterPoolBudgetBytes);
+            filter = filterPool.acquire(mCurrentFilterType);
+            filterPool.warmUp(FilterManager.getNeighbours(mCurrentFilterType, WARM_UP_RADIUS));
+        } else {
+            filter = FilterManager.getCameraFilter(mCurrentFilterType, appContext);
+        }
+        fullFrameRect = new FullFrameRect(filter);
+        textureId = fullFrameRect.createTexture();
+        cameraTexture = new SurfaceTexture(textureId);
+        final RenderHandler handler = renderHandler;
+        cameraTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override   // runs on arbitrary thread
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                handler.sendEmptyMessage(RenderHandler.MSG_FRAME_AVAILABLE);
+            }
+        });
+
+        encoderWindowSurface = new WindowSurface(mEglCore, jaehakEncoder.getInputSurface(), true);
+
+        float renderScale = Math.max(MIN_RENDER_SCALE,
+                Math.min(1f, GlobalSetting.fRenderScale));
+        if (GlobalSetting.isRenderOnce || renderScale < 1f) {
+            copyRect = new FullFrameRect(new ImageFilter(appContext));
+            prepareFrameBuffer(scaleDimension(encoderWidth, renderScale),
+                    scaleDimension(encoderHeight, renderScale));
+            if (DEBUG) Log.d(TAG, "filter at " + frameBufferWidth + "x" + frameBufferHeight +
+                    " for " + encoderWidth + "x" + encoderHeight + " video");
+        }
+    }
+
+    /**
+     * Scales a dimension of the encoder's size, rounded to even.
+     */
+    private static int scaleDimension(int size, float scale) {
+        return Math.max(2, Math.round(size * scale / 2) * 2);
+    }
+
+    /**
+     * Creates the texture the filter draws into, and a framebuffer around it.  The EGL
+     * context must be current.
+     */
+    private void prepareFrameBuffer(int width, int height) {
+        mFrameBufferTexture = new int[1];
+        GLES20.glGenTextures(1, mFrameBufferTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexParameter");
+
+        mFrameBuffer = new int[1];
+        GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mFrameBufferTexture[0], 0);
+        GlUtil.checkGlError("glFramebufferTexture2D");
+
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+
+        // Switch back to the default framebuffer.
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        frameBufferWidth = width;
+        frameBufferHeight = height;
+    }
+
+    private void releaseGl() {
+        if (cameraTexture != null) {
+            cameraTexture.release();
+            cameraTexture = null;
+        }
+        if (encoderWindowSurface != null) {
+            encoderWindowSurface.release();
+            encoderWindowSurface = null;
+        }
+        if (displayWindowSurface != null) {
+            displayWindowSurface.release();
+            displayWindowSurface = null;
+        }
+        if (fullFrameRect != null) {
+            fullFrameRect.release(false);
+            fullFrameRect = null;
+        }
+        if (copyRect != null) {
+            copyRect.release(false);
+            copyRect = null;
+        }
+        if (filterPool != null) {
+            filterPool.release();
+            filterPool = null;
+        }
+        // The framebuffer and the programs go with the context.
+        mFrameBuffer = null;
+        mFrameBufferTexture = null;
+        ProgramCache.detach();
+        if (mEglCore != null) {
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    /**
+     * Waits until the render thread is ready to receive messages.
+     * <p/>
+     * Call from non-render thread.
+     */
+    public void waitUntilReady() {
+        synchronized (mLock) {
+            while (!isReady) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) { /* not expected */ }
+            }
+        }
+    }
+
+    /**
+     * Returns the Handler used to send messages to the render thread.
+     */
+    public RenderHandler getHandler() {
+        synchronized (mLock) {
+            // Confirm ready state.
+            if (!isReady) {
+                throw new RuntimeException("not ready");
+            }
+        }
+        return renderHandler;
+    }
+
+    /**
+     * Returns the SurfaceTexture the camera preview goes to.  Valid after waitUntilReady().
+     */
+    public SurfaceTexture getCameraTexture() {
+        return cameraTexture;
+    }
+
+    /**
+     * Releases everything and stops the thread.  Does not return until it has stopped.
+     * Call from non-render thread, before the encoder is shut down.
+     */
+    public void shutdown() {
+        getHandler().sendEmptyMessage(RenderHandler.MSG_SHUTDOWN);
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Render thread join() was interrupted", ie);
+        }
+    }
+
+    private void drawFrame() {
+        if (mEglCore == null) {
+            if (VERBOSE) Log.v(TAG, "Skipping drawFrame after shutdown");
+            return;
+        }
+
+        // Latch the next frame from the camera.
+        displayWindowSurface.makeCurrent();
+        cameraTexture.updateTexImage();
+        cameraTexture.getTransformMatrix(mTmpMatrix);
+        long timestampNs = cameraClock.toMonotonicNs(cameraTexture.getTimestamp(),
+                System.nanoTime());
+        if (DEBUG && mFrameNum == 0) {
+            Log.d(TAG, "camera clock: " + (cameraClock.isSameClock() ? "monotonic" :
+                    "offset " + cameraClock.getOffsetNs() + " ns"));
+        }
+
+        if (mFrameBuffer != null) {
+            drawFrameOnce(timestampNs);
+            return;
+        }
+
+        // Fill the SurfaceView with it.
+        GLES20.glViewport(0, 0, displayWidth, displayHeight);
+        fullFrameRect.getFilter().setTextureSize(incomingWidth, incomingHeight);
+        fullFrameRect.drawFrameWithFilter(textureId, mTmpMatrix);
+        displayWindowSurface.swapBuffers();
+
+        sendToEncoder(fullFrameRect, textureId, mTmpMatrix, timestampNs);
+        mFrameNum++;
+    }
+
+    /**
+     * drawFrame() with isRenderOnce: filters the latched frame into the framebuffer, then
+     * copies it to the SurfaceView and, if it's recorded, to the encoder, scaling it to each.
+     */
+    private void drawFrameOnce(long timestampNs) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+        GLES20.glViewport(0, 0, frameBufferWidth, frameBufferHeight);
+        fullFrameRect.getFilter().setTextureSize(incomingWidth, incomingHeight);
+        fullFrameRect.drawFrameWithFilter(textureId, mTmpMatrix);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // The texture is already the right way up.
+        GLES20.glViewport(0, 0, displayWidth, displayHeight);
+        copyRect.drawFrameWithFilter(mFrameBufferTexture[0], GlUtil.IDENTITY_MATRIX);
+        displayWindowSurface.swapBuffers();
+
+        sendToEncoder(copyRect, mFrameBufferTexture[0], GlUtil.IDENTITY_MATRIX, timestampNs);
+        mFrameNum++;
+    }
+
+    /**
+     * Draws the frame to the encoder's surface with rect, if it's recorded.  Frames captured
+     * before the button was pressed are left out, so video and audio start at the same
+     * instant; some are skipped while drawing lags behind.
+     */
+    private void sendToEncoder(FullFrameRect rect, int texture, float[] matrix,
+                               long timestampNs) {
+        if (!isRecording || !jaehakEncoder.isFrameInSegment(timestampNs) ||
+                !jaehakEncoder.isFrameWanted(timestampNs)) {
+            return;
+        }
+        encoderWindowSurface.makeCurrent();
+        GLES20.glViewport(0, 0, encoderWidth, encoderHeight);
+        rect.drawFrameWithFilter(texture, matrix);
+        jaehakEncoder.frameAvailableSoon();
+        encoderWindowSurface.setPresentationTime(timestampNs);
+        encoderWindowSurface.swapBuffers();
+
+        intRecordedFrameNum++;
+        if (VERBOSE) Log.v(TAG, "recorded frames: " + intRecordedFrameNum);
+    }
+
+    private void setFilter(FilterManager.FilterType filterType) {
+        if (filterType == mCurrentFilterType) {
+            return;
+        }
+        displayWindowSurface.makeCurrent();
+        if (filterPool != null) {
+            // The previous filter stays in the pool.
+            fullFrameRect.swapProgram(filterPool.acquire(filterType));
+            filterPool.warmUp(FilterManager.getNeighbours(filterType, WARM_UP_RADIUS));
+        } else {
+            fullFrameRect.changeProgram(FilterManager.getCameraFilter(filterType, appContext));
+        }
+        mCurrentFilterType = filterType;
+    }
+
+    private void setSurfaceSize(int width, int height) {
+        displayWidth = width;
+        displayHeight = height;
+    }
+
+    /**
+     * Opens a segment; frames drawn from now on are recorded.
+     */
+    private void startRecording() {
+        if (isRecording) {
+            return;
+        }
+        jaehakEncoder.openSegment();
+        isRecording = true;
+    }
+
+    /**
+     * Closes the open segment after the last frame drawn.
+     */
+    private void stopRecording() {
+        if (!isRecording) {
+            return;
+        }
+        isRecording = false;
+        jaehakEncoder.closeSegment();
+        if (DEBUG) Log.d(TAG, "recorded frames: " + intRecordedFrameNum);
+    }
+
+    /**
+     * Deletes the last segment.  Runs after the close of any segment stopped before it was
+     * requested, so the run and packets removed are that segment's.
+     */
+    private void deleteLastSegment() {
+        stopRecording();
+        jaehakEncoder.deleteLastSegment();
+    }
+
+    private void shutdownLooper() {
+        if (DEBUG) Log.d(TAG, "shutdown");
+        stopRecording();
+        Looper.myLooper().quit();
+    }
+
+    /**
+     * Handler for RenderThread.  Used for messages sent from the UI thread to the render
+     * thread.
+     * <p/>
+     * The object is created on the render thread, and all handlers run there.
+     */
+    public static class RenderHandler extends Handler {
+        private static final int MSG_FRAME_AVAILABLE = 1;
+        private static final int MSG_SET_FILTER = 2;
+        private static final int MSG_SURFACE_CHANGED = 3;
+        private static final int MSG_START_RECORDING = 4;
+        private static final int MSG_STOP_RECORDING = 5;
+        private static final int MSG_SHUTDOWN = 6;
+        private static final int MSG_DELETE_LAST_SEGMENT = 7;
+
+        // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
+        // but no real harm in it.
+        private WeakReference<RenderThread> mWeakRenderThread;
+
+        /**
+         * Constructor.  Instantiate object from render thread.
+         */
+        public RenderHandler(RenderThread renderThread) {
+            mWeakRenderThread = new WeakReference<RenderThread>(renderThread);
+        }
+
+        public void sendSetFilter(FilterManager.FilterType filterType) {
+            sendMessage(obtainMessage(MSG_SET_FILTER, filterType));
+        }
+
+        public void sendSurfaceChanged(int width, int height) {
+            sendMessage(obtainMessage(MSG_SURFACE_CHANGED, width, height));
+        }
+
+        public void sendStartRecording() {
+            sendEmptyMessage(MSG_START_RECORDING);
+        }
+
+        public void sendStopRecording() {
+            sendEmptyMessage(MSG_STOP_RECORDING);
+        }
+
+        public void sendDeleteLastSegment() {
+            sendEmptyMessage(MSG_DELETE_LAST_SEGMENT);
+        }
+
+        @Override  // runs on render thread
+        public void handleMessage(Message msg) {
+            int what = msg.what;
+            if (VERBOSE) {
+                Log.v(TAG, "RenderHandler: what=" + what);
+            }
+
+            RenderThread renderThread = mWeakRenderThread.get();
+            if (renderThread == null) {
+                Log.w(TAG, "RenderHandler.handleMessage: weak ref is null");
+                return;
+            }
+
+            switch (what) {
+                case MSG_FRAME_AVAILABLE:
+                    renderThread.drawFrame();
+                    break;
+                case MSG_SET_FILTER:
+                    renderThread.setFilter((FilterManager.FilterType) msg.obj);
+                    break;
+                case MSG_SURFACE_CHANGED:
+                    renderThread.setSurfaceSize(msg.arg1, msg.arg2);
+                    break;
+                case MSG_START_RECORDING:
+                    renderThread.startRecording();
+                    break;
+                case MSG_STOP_RECORDING:
+                    renderThread.stopRecording();
+                    break;
+                case MSG_SHUTDOWN:
+                    renderThread.shutdownLooper();
+                    break;
+                case MSG_DELETE_LAST_SEGMENT:
+                    renderThread.deleteLastSegment();
+                    break;
+                default:
+                    throw new RuntimeException("unknown message " + what);
+            }
+        }
+    }
+}
@@ -4,23 +4,14 @@ import android.util.Log;
 
 /**
  * Created by Jacklee on 16. 6. 27..
+ * <p/>
+ * Wall-clock span of a recorded segment, for the progress view.  Where the segment lives in
+ * the encoder buffer is tracked by core.data.Segment.
  */
 public class Bar {
 
     String TAG = "Bar";
 
-    int aAudioShortDx;
-    int bAudioShortDx;
-
-
-    int aVideoDxOfFrame;
-    int bVideoDxOfFrame;
-
-    int aVideoDxOfByteArrayTotal;
-
-    int bVideoDxOfByteArrayTotal;
-
-
     long aTimeMill;
     long bTimeMill;
 
@@ -50,63 +41,4 @@ public class Bar {
     }
 
 
-    public int getaAudioShortDx() {
-        Log.d(TAG, "getaAudioShortDx : " + String.valueOf(aAudioShortDx));
-
-        return aAudioShortDx;
-    }
-
-    public void setaAudioShortDx(int aAudioShortDx) {
-        Log.d(TAG, "setaAudioShortDx : " + String.valueOf(aAudioShortDx));
-
-
-        this.aAudioShortDx = aAudioShortDx;
-    }
-
-    public int getbAudioShortDx() {
-        Log.d(TAG, "getbAudioShortDx : " + String.valueOf(bAudioShortDx));
-
-        return bAudioShortDx;
-    }
-
-    public void setbAudioShortDx(int bAudioShortDx) {
-        Log.d(TAG, "setbAudioShortDx : " + String.valueOf(bAudioShortDx));
-        this.bAudioShortDx = bAudioShortDx;
-    }
-    public int getbVideoDxOfFrame() {
-        return bVideoDxOfFrame;
-    }
-
-    public void setbVideoDxOfFrame(int bVideoDxOfFrame) {
-        this.bVideoDxOfFrame = bVideoDxOfFrame;
-    }
-
-    public int getaVideoDxOfFrame() {
-        return aVideoDxOfFrame;
-    }
-
-    public void setaVideoDxOfFrame(int aVideoDxOfFrame) {
-        this.aVideoDxOfFrame = aVideoDxOfFrame;
-    }
-
-
-
-
-
-    public int getbVideoDxOfByteArrayTotal() {
-        return bVideoDxOfByteArrayTotal;
-    }
-
-    public void setbVideoDxOfByteArrayTotal(int bVideoDxOfByteArrayTotal) {
-        this.bVideoDxOfByteArrayTotal = bVideoDxOfByteArrayTotal;
-    }
-
-    public int getaVideoDxOfByteArrayTotal() {
-        return aVideoDxOfByteArrayTotal;
-    }
-
-    public void setaVideoDxOfByteArrayTotal(int aVideoDxOfByteArrayTotal) {
-        this.aVideoDxOfByteArrayTotal = aVideoDxOfByteArrayTotal;
-    }
-
 }
@@ -0,0 +1,73 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CameraClock}.
+ */
+public class CameraClockTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void monotonicTimestampsPassThrough() throws Exception {
+        CameraClock clock = new CameraClock();
+        assertEquals(1000 * MS, clock.toMonotonicNs(1000 * MS, 1040 * MS));
+        assertEquals(1033 * MS, clock.toMonotonicNs(1033 * MS, 1100 * MS));
+        assertTrue(clock.isSameClock());
+        assertEquals(0, clock.getOffsetNs());
+    }
+
+    @Test
+    public void bootTimeTimestampsAreMapped() throws Exception {
+        // CLOCK_BOOTTIME, 5 s ahead after a suspend.
+        long ahead = 5000 * MS;
+        CameraClock clock = new CameraClock();
+        long first = clock.toMonotonicNs(1000 * MS + ahead, 1040 * MS);
+        assertFalse(clock.isSameClock());
+        assertEquals(1040 * MS, first);
+
+        // A faster frame tightens the offset; later frames keep their captured spacing.
+        long second = clock.toMonotonicNs(1033 * MS + ahead, 1063 * MS);
+        long third = clock.toMonotonicNs(1066 * MS + ahead, 1116 * MS);
+        assertEquals(1063 * MS, second);
+        assertEquals(33 * MS, third - second);
+        assertEquals(30 * MS - ahead, clock.getOffsetNs());
+    }
+
+    @Test
+    public void unknownClockIsMapped() throws Exception {
+        // Timestamps from a clock that started long after boot.
+        CameraClock clock = new CameraClock();
+        long first = clock.toMonotonicNs(10 * MS, 90000 * MS);
+        long second = clock.toMonotonicNs(43 * MS, 90040 * MS);
+        assertEquals(90000 * MS, first);
+        assertEquals(33 * MS, second - first);
+    }
+
+    @Test
+    public void driftingClockIsMeasuredAgain() throws Exception {
+        CameraClock clock = new CameraClock();
+        clock.toMonotonicNs(10 * MS, 90000 * MS);
+        // The camera clock ran slow: mapped time would be far behind arrival.
+        long late = clock.toMonotonicNs(20 * MS, 91000 * MS);
+        assertEquals(91000 * MS, late);
+        assertEquals(33 * MS, clock.toMonotonicNs(53 * MS, 91040 * MS) - late);
+    }
+
+    @Test
+    public void missingTimestampUsesArrival() throws Exception {
+        CameraClock clock = new CameraClock();
+        assertEquals(500 * MS, clock.toMonotonicNs(0, 500 * MS));
+    }
+
+    @Test
+    public void resultAlwaysIncreases() throws Exception {
+        CameraClock clock = new CameraClock();
+        long first = clock.toMonotonicNs(1000 * MS, 1040 * MS);
+        assertEquals(first + 1, clock.toMonotonicNs(1000 * MS, 1073 * MS));
+        assertEquals(first + 2, clock.toMonotonicNs(990 * MS, 1100 * MS));
+    }
+}
@@ -0,0 +1,87 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link EncoderRateController}.
+ */
+public class EncoderRateControllerTest {
+
+    private static final int MBIT = 1000000;
+
+    @Test
+    public void keepsFullRateWithinBudget() throws Exception {
+        // 30 s at 6 Mbps.
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        int capacity = 6 * MBIT / 8 * 30;
+        assertEquals(0, controller.update(0, capacity, capacity / 20, 3000000));
+        assertEquals(6 * MBIT, controller.getBitRate());
+    }
+
+    @Test
+    public void lowersRateWhenRingFillsEarly() throws Exception {
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        int capacity = 6 * MBIT / 8 * 30;
+        // Half full after 10 s: 11.25 MB left for 20 s is 4.5 Mbps before headroom.
+        int bitRate = controller.update(0, capacity, capacity / 2, 10000000);
+        assertEquals(4.5 * MBIT * EncoderRateController.HEADROOM, bitRate, 1);
+        // Not again within the update interval.
+        assertEquals(0, controller.update(500000, capacity, capacity / 2 + 1000, 10500000));
+    }
+
+    @Test
+    public void correctsForOvershoot() throws Exception {
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        int capacity = 6 * MBIT / 8 * 30;
+        // 2 s of packets at 9 Mbps.
+        for (int i = 0; i <= 30; i++) {
+            controller.onPacket(9 * MBIT / 8 / 15, i * 66667L);
+        }
+        int bitRate = controller.update(0, capacity, 0, 0);
+        assertTrue(bitRate > 0 && bitRate < 5 * MBIT);
+    }
+
+    @Test
+    public void dropsToMinimumWhenNearlyFull() throws Exception {
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        int capacity = 6 * MBIT / 8 * 30;
+        controller.update(0, capacity, 0, 0);
+        // Right after an update, but 95% full with 10 s still to go.
+        assertEquals(MBIT, controller.update(1000, capacity, capacity * 95 / 100, 20000000));
+    }
+
+    @Test
+    public void rollingRingKeepsTargetSpan() throws Exception {
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        int capacity = 3 * MBIT / 8 * 30;
+        // Full and spanning 30 s: the ring only holds 3 Mbps for the target span.
+        int bitRate = controller.update(0, capacity, capacity, 30000000);
+        assertEquals((int) (3 * MBIT * EncoderRateController.HEADROOM), bitRate, 1);
+    }
+
+    @Test
+    public void skipsFramesWhileLate() throws Exception {
+        EncoderRateController controller = new EncoderRateController(MBIT, 6 * MBIT, 30);
+        long now = 0;
+        for (int i = 0; i < 30; i++) {
+            now += 66667;
+            assertTrue(controller.isFrameWanted(now - 20000, now));
+        }
+        // Drawing falls 300 ms behind.
+        int sent = 0;
+        for (int i = 0; i < 60; i++) {
+            now += 66667;
+            sent += controller.isFrameWanted(now - 300000, now) ? 1 : 0;
+        }
+        assertTrue(controller.getFrameDivisor() > 1);
+        assertTrue(sent < 60);
+        // Caught up again.
+        for (int i = 0; i < 60; i++) {
+            now += 66667;
+            controller.isFrameWanted(now - 20000, now);
+        }
+        assertEquals(1, controller.getFrameDivisor());
+    }
+}
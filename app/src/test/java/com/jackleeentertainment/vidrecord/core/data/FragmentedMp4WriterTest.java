@@ -0,0 +1,172 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FragmentedMp4Writer}.  Writes to memory and parses the box
+ * tree back.
+ */
+public class FragmentedMp4WriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, 0x11};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private static final String[] CONTAINERS = {
+            "moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf", "mfra"
+    };
+
+    /**
+     * A parsed box: type, file offset, total size, and children for container boxes.
+     */
+    private static class ParsedBox {
+        final String type;
+        final int offset;
+        final int size;
+        final List<ParsedBox> children = new ArrayList<ParsedBox>();
+
+        ParsedBox(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        ParsedBox child(String childType) {
+            for (ParsedBox child : children) {
+                if (child.type.equals(childType)) {
+                    return child;
+                }
+            }
+            fail("no " + childType + " in " + type);
+            return null;
+        }
+    }
+
+    private static List<ParsedBox> parse(ByteBuffer buf, int start, int end) {
+        List<ParsedBox> boxes = new ArrayList<ParsedBox>();
+        int at = start;
+        while (at < end) {
+            int size = buf.getInt(at);
+            assertTrue("box size " + size + " at " + at, size >= 8 && at + size <= end);
+            String type = new String(new byte[]{buf.get(at + 4), buf.get(at + 5),
+                    buf.get(at + 6), buf.get(at + 7)});
+            ParsedBox box = new ParsedBox(type, at, size);
+            for (String container : CONTAINERS) {
+                if (container.equals(type)) {
+                    box.children.addAll(parse(buf, at + 8, at + size));
+                }
+            }
+            boxes.add(box);
+            at += size;
+        }
+        assertEquals(end, at);
+        return boxes;
+    }
+
+    private static ByteBuffer frame(int nalType, int payloadSize) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + payloadSize);
+        buf.put(new byte[]{0, 0, 0, 1, (byte) nalType});
+        for (int i = 0; i < payloadSize; i++) {
+            buf.put((byte) (0x80 | i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void add(FragmentedMp4Writer writer, ByteBuffer frame, long pts,
+                            boolean isSync) {
+        writer.addSample(frame, frame.position(), frame.remaining(), pts, isSync);
+    }
+
+    @Test
+    public void writesParsableFragments() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(out, 720, 1280,
+                ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+
+        for (int gop = 0; gop < 2; gop++) {
+            for (int i = 0; i < 3; i++) {
+                long pts = (gop * 3 + i) * 33333L;
+                add(writer, frame(i == 0 ? 0x65 : 0x41, 100 + i), pts, i == 0);
+            }
+            writer.flushFragment();
+        }
+        writer.finish();
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(bytes.length, writer.getPosition());
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        List<ParsedBox> top = parse(buf, 0, bytes.length);
+        String[] expected = {"ftyp", "moov", "moof", "mdat", "moof", "mdat", "mfra"};
+        assertEquals(expected.length, top.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], top.get(i).type);
+        }
+
+        // avcC carries the SPS and PPS without start codes.
+        ParsedBox stsd = top.get(1).child("trak").child("mdia").child("minf").child("stbl")
+                .child("stsd");
+        int avcC = stsd.offset + 16 + 86;
+        assertEquals("avcC", new String(bytes, avcC + 4, 4));
+        assertEquals(0x42, bytes[avcC + 9]);
+        assertEquals(SPS.length - 4, buf.getShort(avcC + 14));
+
+        // Second fragment: three samples, data offset pointing at the mdat payload.
+        ParsedBox moof = top.get(4);
+        ParsedBox mdat = top.get(5);
+        ParsedBox traf = moof.child("traf");
+        ParsedBox tfdt = traf.child("tfdt");
+        assertEquals(3 * 33333L * FragmentedMp4Writer.TIMESCALE / 1000000,
+                buf.getLong(tfdt.offset + 12));
+        ParsedBox trun = traf.child("trun");
+        assertEquals(3, buf.getInt(trun.offset + 12));
+        assertEquals(mdat.offset + 8, moof.offset + buf.getInt(trun.offset + 16));
+        // Sample 0: duration, size, sync flags.  Annex B start code became a length prefix.
+        assertEquals(3000, buf.getInt(trun.offset + 20));
+        assertEquals(4 + 1 + 100, buf.getInt(trun.offset + 24));
+        assertEquals(0x02000000, buf.getInt(trun.offset + 28));
+        assertEquals(0x01010000, buf.getInt(trun.offset + 40));
+        assertEquals(1 + 100, buf.getInt(mdat.offset + 8));
+        assertEquals(0x65, bytes[mdat.offset + 12]);
+        assertEquals(8 + 3 * 4 + 3 + 100 + 101 + 102, mdat.size);
+
+        // mfra indexes both fragments by moof offset.
+        ParsedBox mfra = top.get(6);
+        ParsedBox tfra = mfra.child("tfra");
+        assertEquals(2, buf.getInt(tfra.offset + 20));
+        assertEquals(top.get(2).offset, buf.getLong(tfra.offset + 24 + 8));
+        assertEquals(moof.offset, buf.getLong(tfra.offset + 24 + 19 + 8));
+        ParsedBox mfro = mfra.child("mfro");
+        assertEquals(mfra.size, buf.getInt(mfro.offset + 12));
+    }
+
+    @Test
+    public void splitsMultipleNalUnits() throws Exception {
+        // SEI + IDR slice with a 3-byte start code and a trailing zero byte.
+        byte[] annexB = {0, 0, 0, 1, 0x06, 0x05, 0x00, 0, 0, 1, 0x65, 0x11, 0x22};
+        FragmentedMp4Writer.Box box = new FragmentedMp4Writer.Box();
+        FragmentedMp4Writer.appendLengthPrefixed(box, ByteBuffer.wrap(annexB), 0,
+                annexB.length);
+        ByteBuffer out = ByteBuffer.wrap(box.array(), 0, box.position());
+        assertEquals(2, out.getInt());
+        assertEquals(0x06, out.get());
+        assertEquals(0x05, out.get());
+        assertEquals(3, out.getInt());
+        assertEquals(0x65, out.get());
+        assertEquals(4 + 2 + 4 + 3, box.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fragmentMustStartWithSyncFrame() throws Exception {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new ByteArrayOutputStream(),
+                16, 16, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        ByteBuffer frame = frame(0x41, 10);
+        add(writer, frame, 0, false);
+    }
+}
@@ -0,0 +1,92 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * JMH-style throughput benchmark for the {@link PacketRing} producer, run with a concurrent
+ * snapshot reader.  Not a unit test; run main() on a plain JVM.
+ * <p/>
+ * Packet sizes model 1080p at 60 fps and 12 Mbps: a 150 KB sync frame once per second and
+ * ~22 KB for the other frames.  The ring is sized for 30 seconds, and is cleared whenever it
+ * fills so the producer never stalls.
+ */
+public class PacketRingBenchmark {
+
+    private static final int FPS = 60;
+    private static final int BIT_RATE = 12000000;
+    private static final int SPAN_SEC = 30;
+    private static final int SYNC_SIZE = 150 * 1024;
+    private static final int DELTA_SIZE = 22 * 1024;
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 1000000000L;
+
+    private static volatile boolean sReaderRunning;
+    private static volatile long sSink;
+
+    public static void main(String[] args) throws Exception {
+        final PacketRing ring = new PacketRing(BIT_RATE / 8 * SPAN_SEC, FPS * SPAN_SEC * 2);
+        ByteBuffer sync = ByteBuffer.allocateDirect(SYNC_SIZE);
+        ByteBuffer delta = ByteBuffer.allocateDirect(DELTA_SIZE);
+
+        sReaderRunning = true;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long sum = 0;
+                while (sReaderRunning) {
+                    PacketRing.Snapshot snapshot = ring.snapshot();
+                    sum += snapshot.getPacketCount() + snapshot.headStart;
+                }
+                sSink = sum;
+            }
+        }, "snapshot-reader");
+        reader.start();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            double opsPerSec = iteration(ring, sync, delta);
+            System.out.println(String.format(Locale.US, "# Warmup Iteration %2d: %,.0f packets/s",
+                    i + 1, opsPerSec));
+        }
+        double total = 0;
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            double opsPerSec = iteration(ring, sync, delta);
+            total += opsPerSec;
+            min = Math.min(min, opsPerSec);
+            System.out.println(String.format(Locale.US, "Iteration %2d: %,.0f packets/s",
+                    i + 1, opsPerSec));
+        }
+        sReaderRunning = false;
+        reader.join();
+
+        double mean = total / MEASUREMENT_ITERATIONS;
+        double bytesPerPacket = (SYNC_SIZE + (FPS - 1) * (double) DELTA_SIZE) / FPS;
+        System.out.println(String.format(Locale.US,
+                "Result: %,.0f packets/s (min %,.0f), %,.1f MB/s, %,.0fx real time at %d fps",
+                mean, min, mean * bytesPerPacket / (1024 * 1024), mean / FPS, FPS));
+    }
+
+    private static double iteration(PacketRing ring, ByteBuffer sync, ByteBuffer delta) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        long now;
+        do {
+            for (int i = 0; i < FPS; i++) {
+                ByteBuffer packet = (i == 0) ? sync : delta;
+                packet.clear();
+                if (!ring.add(packet, (i == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, ops * 16666)) {
+                    ring.clear();
+                    packet.clear();
+                    ring.add(packet, (i == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, ops * 16666);
+                }
+                ops++;
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - start);
+    }
+}
@@ -0,0 +1,75 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * JMH-style benchmark comparing the modulo and power-of-two (mask) index paths of
+ * {@link PacketRing}.  Not a unit test; run main() on a plain JVM.
+ * <p/>
+ * Uses the production sizes: 900 meta-data slots and a 22.5 MB data ring (6 Mbps, 30 s),
+ * which mask mode rounds up to 1024 slots and 32 MB.  Each operation is one add() of a small
+ * packet plus the getHeadStart()/nextSlot() lookups a save performs, so index math dominates
+ * rather than the copy.
+ */
+public class PacketRingIndexBenchmark {
+
+    private static final int DATA_LEN = 6000000 / 8 * 30;
+    private static final int META_LEN = 900;
+    private static final int PACKET_SIZE = 64;
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 500000000L;
+
+    private static long sSink;
+
+    public static void main(String[] args) {
+        PacketRing modulo = new PacketRing(DATA_LEN, META_LEN, false);
+        PacketRing mask = new PacketRing(DATA_LEN, META_LEN, true);
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+
+        double moduloScore = run("modulo", modulo, packet);
+        double maskScore = run("mask", mask, packet);
+        System.out.println(String.format(Locale.US,
+                "Result: modulo %,.0f ops/s, mask %,.0f ops/s, mask/modulo %.2fx (sink %d)",
+                moduloScore, maskScore, maskScore / moduloScore, sSink));
+    }
+
+    private static double run(String name, PacketRing ring, ByteBuffer packet) {
+        System.out.println(String.format(Locale.US, "# Benchmark: %s (data=%,d meta=%d)",
+                name, ring.getDataLength(), ring.getMetaLength()));
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            System.out.println(String.format(Locale.US, "# Warmup Iteration %2d: %,.0f ops/s",
+                    i + 1, iteration(ring, packet)));
+        }
+        double total = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            double score = iteration(ring, packet);
+            total += score;
+            System.out.println(String.format(Locale.US, "Iteration %2d: %,.0f ops/s", i + 1, score));
+        }
+        return total / MEASUREMENT_ITERATIONS;
+    }
+
+    private static double iteration(PacketRing ring, ByteBuffer packet) {
+        long ops = 0;
+        long sum = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        long now;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                packet.clear();
+                if (!ring.add(packet, 0, ops)) {
+                    ring.clear();
+                }
+                sum += ring.getHeadStart() + ring.nextSlot(ring.slotOf(ring.getHeadSeq()));
+                ops++;
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        sSink += sum;
+        return ops * 1e9 / (now - start);
+    }
+}
@@ -0,0 +1,369 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PacketRing}.
+ */
+public class PacketRingTest {
+
+    private static ByteBuffer packet(int size, int fill) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (fill + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static byte byteAt(PacketRing ring, int offset) {
+        return ring.getStorage().newReadView().get(offset);
+    }
+
+    @Test
+    public void addAndSnapshot() throws Exception {
+        PacketRing ring = new PacketRing(1000, 10);
+        assertTrue(ring.snapshot().isEmpty());
+
+        assertTrue(ring.add(packet(100, 0), PacketRing.FLAG_SYNC_FRAME, 1000));
+        assertTrue(ring.add(packet(50, 1), 0, 2000));
+
+        PacketRing.Snapshot snapshot = ring.snapshot();
+        assertEquals(2, snapshot.getPacketCount());
+        assertEquals(1000, snapshot.getTimeSpanUsec());
+        assertEquals(ring.getHeadStart(), snapshot.headStart);
+        assertEquals(0, ring.getStart(0));
+        assertEquals(101, ring.getStart(1));
+        assertEquals(1, byteAt(ring, 101));
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        PacketRing ring = new PacketRing(1000, 10);
+        assertTrue(ring.add(packet(600, 0), 0, 0));
+        assertFalse(ring.add(packet(600, 0), 0, 1));
+        assertEquals(1, ring.getPacketCount());
+    }
+
+    @Test
+    public void usedBytesAcrossWrap() throws Exception {
+        PacketRing ring = new PacketRing(1000, 10);
+        assertEquals(0, ring.computeUsedBytes());
+        ring.add(packet(100, 0), PacketRing.FLAG_SYNC_FRAME, 0);
+        ring.add(packet(50, 0), 0, 1);
+        assertEquals(152, ring.computeUsedBytes());
+
+        ring.clear();
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        ring.add(packet(600, 0), PacketRing.FLAG_SYNC_FRAME, 0);
+        ring.add(packet(300, 0), PacketRing.FLAG_SYNC_FRAME, 1);
+        // Wraps to 0 and evicts the first packet; [902, 1000) counts as used.
+        ring.add(packet(200, 0), PacketRing.FLAG_SYNC_FRAME, 2);
+        assertEquals(0, ring.getStart(ring.slotOf(ring.getHeadSeq() - 1)));
+        assertEquals(600, ring.computeUsedBytes());
+    }
+
+    @Test
+    public void metaDataFull() throws Exception {
+        PacketRing ring = new PacketRing(1000, 4);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.add(packet(10, i), 0, i));
+        }
+        assertFalse(ring.add(packet(10, 0), 0, 4));
+    }
+
+    @Test
+    public void snapshotIsStableWhileProducerAdds() throws Exception {
+        PacketRing ring = new PacketRing(1000, 10);
+        ring.add(packet(10, 0), 0, 0);
+        PacketRing.Snapshot snapshot = ring.snapshot();
+        ring.add(packet(10, 0), 0, 1);
+        assertEquals(1, snapshot.getPacketCount());
+        assertTrue(ring.isStillValid(snapshot));
+
+        ring.clear();
+        assertFalse(ring.isStillValid(snapshot));
+    }
+
+    @Test
+    public void setHeadSlotRewinds() throws Exception {
+        PacketRing ring = new PacketRing(1000, 10);
+        for (int i = 0; i < 5; i++) {
+            ring.add(packet(10, i), 0, i);
+        }
+        ring.setHeadSlot(2);
+        assertEquals(2, ring.getPacketCount());
+        assertEquals(22, ring.getHeadStart());
+    }
+
+    @Test
+    public void powerOfTwoRoundsUpAndWraps() throws Exception {
+        PacketRing ring = new PacketRing(1000, 900, true);
+        assertEquals(1024, ring.getDataLength());
+        assertEquals(1024, ring.getMetaLength());
+        assertEquals(0, ring.slotOf(1024));
+        assertEquals(0, ring.nextSlot(1023));
+
+        assertTrue(ring.add(packet(600, 0), 0, 0));
+        assertTrue(ring.add(packet(300, 0), 0, 1));
+        assertEquals(902, ring.getHeadStart());
+        assertFalse(ring.canAdd(200));
+    }
+
+    @Test
+    public void syncFrameIndex() throws Exception {
+        PacketRing ring = new PacketRing(10000, 100);
+        // GOP of 3: sync frames at pts 0, 300, 600, 900.
+        for (int i = 0; i < 12; i++) {
+            ring.add(packet(10, i), (i % 3 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i * 100);
+        }
+        PacketRing.Snapshot snapshot = ring.snapshot();
+        assertEquals(4, snapshot.getSyncCount());
+        assertEquals(0, ring.getOldestSyncSeq(snapshot));
+        assertEquals(6, ring.getSyncSeq(snapshot, 2));
+        assertEquals(-1, ring.getSyncSeq(snapshot, 4));
+        assertEquals(3, ring.getSyncSeqAtOrBefore(snapshot, 550));
+        assertEquals(6, ring.getSyncSeqAtOrBefore(snapshot, 600));
+        assertEquals(9, ring.getSyncSeqAtOrBefore(snapshot, 5000));
+
+        // Truncating drops the sync frames past the new head.
+        ring.setHeadSlot(5);
+        snapshot = ring.snapshot();
+        assertEquals(2, snapshot.getSyncCount());
+        assertEquals(3, ring.getSyncSeqAtOrBefore(snapshot, 5000));
+
+        ring.clear();
+        assertEquals(-1, ring.getOldestSyncSeq(ring.snapshot()));
+    }
+
+    @Test
+    public void evictsWholeGopsWhenFull() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        // GOPs of 4 packets of 49 bytes (50 with the gap), 5 GOPs fill the data ring.
+        for (int i = 0; i < 40; i++) {
+            assertTrue(ring.add(packet(49, i), (i % 4 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0,
+                    i * 100));
+            PacketRing.Snapshot snapshot = ring.snapshot();
+            // Always starts on a sync frame.
+            assertEquals(snapshot.tailSeq, ring.getOldestSyncSeq(snapshot));
+        }
+        assertEquals(0, ring.getDroppedPackets());
+        assertTrue(ring.getEvictedPackets() > 0);
+        assertEquals(0, ring.getEvictedPackets() % 4);
+        assertEquals(ring.getEvictedPackets() * 49, ring.getEvictedBytes());
+        assertEquals(40, ring.getEvictedPackets() + ring.getPacketCount());
+
+        // Packets are never split across the end of the data ring.
+        for (long seq = ring.getTailSeq(); seq < ring.getHeadSeq(); seq++) {
+            int slot = ring.slotOf(seq);
+            assertTrue(ring.getStart(slot) + ring.getLength(slot) <= 1000);
+        }
+        int last = ring.slotOf(ring.getHeadSeq() - 1);
+        int start = ring.getStart(last);
+        for (int i = 0; i < 49; i++) {
+            assertEquals((byte) (39 + i), byteAt(ring, start + i));
+        }
+    }
+
+    @Test
+    public void stopRecordingPolicyDrops() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        for (int i = 0; i < 40; i++) {
+            ring.add(packet(49, i), (i % 4 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i * 100);
+        }
+        assertEquals(0, ring.getEvictedPackets());
+        assertEquals(0, ring.getTailSeq());
+        assertEquals(40, ring.getPacketCount() + ring.getDroppedPackets());
+    }
+
+    @Test
+    public void singleGopThatDoesNotFitIsDropped() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        assertTrue(ring.add(packet(600, 0), PacketRing.FLAG_SYNC_FRAME, 0));
+        assertFalse(ring.add(packet(600, 0), 0, 1));
+        assertEquals(1, ring.getDroppedPackets());
+    }
+
+    @Test
+    public void packetThatWouldStraddleTheEndMovesToStart() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.add(packet(300, i), PacketRing.FLAG_SYNC_FRAME, i));
+        }
+        int last = ring.slotOf(ring.getHeadSeq() - 1);
+        assertEquals(0, ring.getStart(last));
+        assertEquals(1, ring.getEvictedPackets());
+        assertEquals(3, byteAt(ring, 0));
+    }
+
+    @Test
+    public void packetNeverFillsTheGapBeforeTheTail() throws Exception {
+        PacketRing ring = new PacketRing(100, 16);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        assertTrue(ring.add(packet(30, 0), PacketRing.FLAG_SYNC_FRAME, 0));
+        assertTrue(ring.add(packet(30, 1), PacketRing.FLAG_SYNC_FRAME, 1));
+        assertTrue(ring.add(packet(30, 2), 0, 2));
+        // [0, 31) is free after evicting the first GOP, but exactly 31 bytes would leave the
+        // next head start past the tail.  The only other GOP is the live one, so it's dropped.
+        assertFalse(ring.add(packet(31, 3), PacketRing.FLAG_SYNC_FRAME, 3));
+        assertEquals(31, ring.getStart(ring.slotOf(ring.getTailSeq())));
+
+        // Smaller packets fill the end of the ring, then wrap to 0, without reaching the tail.
+        assertTrue(ring.add(packet(5, 4), PacketRing.FLAG_SYNC_FRAME, 4));
+        assertTrue(ring.add(packet(10, 5), 0, 5));
+        assertEquals(0, ring.getStart(ring.slotOf(ring.getHeadSeq() - 1)));
+        assertTrue(ring.add(packet(5, 6), 0, 6));
+        assertEquals(31, ring.getStart(ring.slotOf(ring.getTailSeq())));
+        assertEquals(1, byteAt(ring, 31));
+        for (long seq = ring.getTailSeq() + 1; seq < ring.getHeadSeq(); seq++) {
+            int slot = ring.slotOf(seq);
+            int start = ring.getStart(slot);
+            assertTrue(start + ring.getLength(slot) < 31 || start >= 31 + 30);
+        }
+
+        // Same with the tail at 0: a packet ending at the end of the ring would wrap the next
+        // head start to 1, inside the tail packet.
+        ring = new PacketRing(100, 16);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        assertTrue(ring.add(packet(50, 7), PacketRing.FLAG_SYNC_FRAME, 0));
+        assertFalse(ring.add(packet(49, 8), 0, 1));
+        assertTrue(ring.add(packet(10, 9), PacketRing.FLAG_SYNC_FRAME, 2));
+        assertEquals(0, ring.getStart(ring.slotOf(ring.getTailSeq())));
+        assertEquals(51, ring.getStart(ring.slotOf(ring.getHeadSeq() - 1)));
+        for (int i = 0; i < 50; i++) {
+            assertEquals((byte) (7 + i), byteAt(ring, i));
+        }
+    }
+
+    @Test
+    public void truncateToSegmentStart() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 6; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        long segmentStart = ring.getHeadSeq();
+        for (int i = 6; i < 12; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        // The second segment wrapped the data ring and evicted the start of the first.
+        assertTrue(ring.getTailSeq() > 0);
+
+        ring.truncateTo(segmentStart);
+        PacketRing.Snapshot snapshot = ring.snapshot();
+        assertEquals(segmentStart, snapshot.headSeq);
+        assertEquals(5, snapshot.lastPtsUsec);
+        assertEquals(ring.getTailSeq(), ring.getOldestSyncSeq(snapshot));
+        assertEquals(6 * 101, ring.getHeadStart());
+
+        // Truncating to an evicted packet empties the ring.
+        ring.truncateTo(0);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void pinnedSnapshotIsNotEvicted() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 8; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        PacketRing.Snapshot snapshot = ring.pinSnapshot();
+
+        // Room is left for one more packet, then new packets are dropped.
+        assertTrue(ring.add(packet(100, 8), PacketRing.FLAG_SYNC_FRAME, 8));
+        assertFalse(ring.add(packet(100, 9), 0, 9));
+        assertEquals(1, ring.getDroppedPackets());
+        assertTrue(ring.isStillValid(snapshot));
+
+        ring.unpin();
+        assertTrue(ring.add(packet(100, 10), PacketRing.FLAG_SYNC_FRAME, 10));
+        assertFalse(ring.isStillValid(snapshot));
+    }
+
+    @Test
+    public void truncationInvalidatesSnapshotEvenWhenRefilled() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 4; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        PacketRing.Snapshot snapshot = ring.pinSnapshot();
+        int truncations = ring.getTruncations();
+        assertTrue(ring.contains(3, truncations));
+
+        // A deleted segment; recording goes on, and new packets reuse the sequence numbers
+        // and bytes, past the snapshot's head.
+        ring.truncateTo(2);
+        for (int i = 4; i < 7; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        assertTrue(ring.getHeadSeq() > snapshot.headSeq);
+        assertEquals(ring.getTailSeq(), snapshot.tailSeq);
+        assertFalse(ring.isStillValid(snapshot));
+        assertFalse(ring.contains(3, truncations));
+        assertTrue(ring.contains(3, ring.getTruncations()));
+        assertTrue(ring.isStillValid(ring.snapshot()));
+        ring.unpin();
+    }
+
+    @Test
+    public void dropSkipsTheRestOfTheGop() throws Exception {
+        PacketRing ring = new PacketRing(1000, 100);
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 9; i++) {
+            ring.add(packet(100, i), (i % 2 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0, i);
+        }
+        ring.pinSnapshot();
+        // The pin holds the tail: this P-frame is dropped...
+        assertFalse(ring.add(packet(100, 9), 0, 9));
+        assertTrue(ring.isDroppingToSync());
+        ring.unpin();
+        // ...and so is the rest of its GOP, though there's room again, since it would
+        // reference the dropped frame.
+        assertFalse(ring.add(packet(10, 10), 0, 10));
+        assertEquals(2, ring.getDroppedPackets());
+        assertEquals(8, ring.getPtsUsec(ring.slotOf(ring.getHeadSeq() - 1)));
+
+        assertTrue(ring.add(packet(100, 11), PacketRing.FLAG_SYNC_FRAME, 11));
+        assertFalse(ring.isDroppingToSync());
+        assertTrue(ring.add(packet(10, 12), 0, 12));
+    }
+
+    @Test
+    public void directStorage() throws Exception {
+        PacketRing ring = new PacketRing(new DirectPacketStorage(1024), 16, true);
+        assertTrue(ring.add(packet(100, 0), PacketRing.FLAG_SYNC_FRAME, 0));
+        assertTrue(ring.add(packet(50, 7), 0, 1));
+        assertTrue(ring.getStorage().newReadView().isDirect());
+        assertEquals(7, byteAt(ring, 101));
+        assertEquals(7 + 49, byteAt(ring, 150));
+    }
+
+    @Test
+    public void mappedStorage() throws Exception {
+        File file = File.createTempFile("ring", ".bin");
+        PacketRing ring = new PacketRing(MappedPacketStorage.create(file, 1000), 16, false);
+        assertFalse(file.exists());
+        ring.setOverflowPolicy(PacketRing.OverflowPolicy.DROP_OLDEST_GOP);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.add(packet(300, i), PacketRing.FLAG_SYNC_FRAME, i));
+        }
+        assertEquals(3, ring.getPacketCount());
+        int last = ring.slotOf(ring.getHeadSeq() - 1);
+        assertEquals(7, byteAt(ring, ring.getStart(last)));
+        assertTrue(ring.getStorage().newReadView().isDirect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void powerOfTwoRejectsOddStorage() throws Exception {
+        new PacketRing(new HeapPacketStorage(1000), 16, true);
+    }
+}
@@ -0,0 +1,137 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SegmentPersister}.  Writes to a temp file and checks the
+ * top-level boxes.
+ */
+public class SegmentPersisterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, 0x11};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private File file;
+    private PacketRing ring;
+    private SegmentTable table;
+    private SegmentPersister persister;
+    private long pts;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("persister", ".mp4");
+        ring = new PacketRing(10000, 100);
+        table = new SegmentTable();
+        persister = new SegmentPersister(ring, file);
+        persister.start(16, 16, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    }
+
+    @After
+    public void tearDown() {
+        persister.close();
+        file.delete();
+    }
+
+    /**
+     * Records a segment of two GOPs, three frames each.
+     */
+    private Segment record() {
+        table.open(ring);
+        for (int i = 0; i < 6; i++) {
+            boolean isSync = i % 3 == 0;
+            ByteBuffer frame = ByteBuffer.wrap(new byte[]{0, 0, 0, 1,
+                    (byte) (isSync ? 0x65 : 0x41), 0x11, 0x22});
+            ring.add(frame, isSync ? PacketRing.FLAG_SYNC_FRAME : 0, pts);
+            pts += 33333;
+        }
+        return table.close(ring);
+    }
+
+    private List<String> topLevelBoxes() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            List<String> types = new ArrayList<String>();
+            long at = 0;
+            while (at < raf.length()) {
+                raf.seek(at);
+                int size = raf.readInt();
+                byte[] type = new byte[4];
+                raf.readFully(type);
+                assertTrue("box size " + size + " at " + at, size >= 8);
+                types.add(new String(type));
+                at += size;
+            }
+            assertEquals(raf.length(), at);
+            return types;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String join(List<String> types) {
+        StringBuilder sb = new StringBuilder();
+        for (String type : types) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(type);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void appendAndFinish() throws Exception {
+        assertTrue(persister.append(record()));
+        assertTrue(persister.append(record()));
+        assertEquals(2, persister.getSegmentCount());
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat moof mdat",
+                join(topLevelBoxes()));
+
+        persister.finish();
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat moof mdat mfra",
+                join(topLevelBoxes()));
+
+        // Recording goes on after a save: the index is cut off and written again later.
+        assertTrue(persister.append(record()));
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat moof mdat moof mdat moof mdat",
+                join(topLevelBoxes()));
+    }
+
+    @Test
+    public void removeTruncatesFile() throws Exception {
+        assertTrue(persister.append(record()));
+        long firstEnd = file.length();
+        Segment second = record();
+        assertTrue(persister.append(second));
+        assertTrue(file.length() > firstEnd);
+
+        assertTrue(persister.remove(second));
+        assertEquals(firstEnd, file.length());
+        assertEquals(1, persister.getSegmentCount());
+        assertFalse(persister.remove(second));
+
+        // The next segment lands where the deleted one was.
+        assertTrue(persister.append(record()));
+        persister.finish();
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat moof mdat mfra",
+                join(topLevelBoxes()));
+    }
+
+    @Test
+    public void skipsSegmentWithoutKeyFrame() throws Exception {
+        table.open(ring);
+        ring.add(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x41, 0x11}), 0, 0);
+        assertFalse(persister.append(table.close(ring)));
+        assertEquals(0, persister.getSegmentCount());
+    }
+}
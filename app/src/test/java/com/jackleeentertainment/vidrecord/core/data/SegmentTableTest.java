@@ -0,0 +1,81 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SegmentTable}.
+ */
+public class SegmentTableTest {
+
+    private static void addPackets(PacketRing ring, int count, long firstPts) {
+        for (int i = 0; i < count; i++) {
+            int flags = (i % 3 == 0) ? PacketRing.FLAG_SYNC_FRAME : 0;
+            ring.add(ByteBuffer.allocate(10), flags, firstPts + i * 100);
+        }
+    }
+
+    @Test
+    public void openAndClose() throws Exception {
+        PacketRing ring = new PacketRing(1000, 50);
+        SegmentTable table = new SegmentTable();
+
+        assertTrue(table.open(ring).isOpen());
+        addPackets(ring, 4, 0);
+        Segment first = table.close(ring);
+        assertEquals(0, first.firstSeq);
+        assertEquals(4, first.endSeq);
+        assertEquals(4, first.getPacketCount());
+        assertEquals(0, first.startByte);
+        assertEquals(3 * 11 + 10, first.endByte);
+        assertEquals(300, first.getDurationUsec());
+        assertEquals(0, first.keyFrameSeq);
+
+        // Frames arriving between segments belong to neither.
+        addPackets(ring, 1, 1000);
+        table.open(ring);
+        addPackets(ring, 2, 2000);
+        Segment second = table.close(ring);
+        assertEquals(5, second.firstSeq);
+        assertEquals(ring.slotOf(6), second.lastSlot);
+        assertEquals(5, second.keyFrameSeq);
+        assertEquals(2, table.size());
+        assertEquals(400, table.getTotalDurationUsec());
+        assertNull(table.close(ring));
+    }
+
+    @Test
+    public void segmentWithoutKeyFrame() throws Exception {
+        PacketRing ring = new PacketRing(1000, 50);
+        SegmentTable table = new SegmentTable();
+        addPackets(ring, 1, 0);
+        table.open(ring);
+        ring.add(ByteBuffer.allocate(10), 0, 100);
+        assertEquals(-1, table.close(ring).keyFrameSeq);
+    }
+
+    @Test
+    public void deleteRewindsToSegmentStart() throws Exception {
+        PacketRing ring = new PacketRing(1000, 50);
+        SegmentTable table = new SegmentTable();
+        table.open(ring);
+        addPackets(ring, 4, 0);
+        table.close(ring);
+        table.open(ring);
+        addPackets(ring, 5, 1000);
+        table.close(ring);
+
+        Segment removed = table.removeLast();
+        ring.truncateTo(removed.firstSeq);
+        assertEquals(4, ring.getHeadSeq());
+        assertEquals(1, table.size());
+
+        // Recording again reuses the space.
+        table.open(ring);
+        addPackets(ring, 1, 2000);
+        assertEquals(4, table.close(ring).firstSeq);
+    }
+}
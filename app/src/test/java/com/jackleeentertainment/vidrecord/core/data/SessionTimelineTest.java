@@ -0,0 +1,113 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SessionTimeline}.
+ */
+public class SessionTimelineTest {
+
+    @Test
+    public void pausesAreCutOut() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        timeline.begin(1000000, 1.0f);
+        timeline.end(3000000);
+        timeline.begin(10000000, 1.0f);
+
+        assertEquals(0, timeline.toSessionUsec(1000000));
+        assertEquals(1500000, timeline.toSessionUsec(2500000));
+        // Second run starts exactly where the first ended.
+        assertEquals(2000000, timeline.toSessionUsec(10000000));
+        assertEquals(2033333, timeline.toSessionUsec(10033333));
+        // In the pause: where it was cut.
+        assertEquals(2000000, timeline.toSessionUsec(5000000));
+        assertEquals(0, timeline.toSessionUsec(0));
+    }
+
+    @Test
+    public void speedScalesRun() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        timeline.begin(0, 2.0f);
+        SessionTimeline.Run first = timeline.end(4000000);
+        assertEquals(2000000, first.getSessionEndUsec());
+        timeline.begin(5000000, 0.5f);
+        assertEquals(2000000, timeline.toSessionUsec(5000000));
+        assertEquals(4000000, timeline.toSessionUsec(6000000));
+    }
+
+    @Test
+    public void runLookup() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        SessionTimeline.Run first = timeline.begin(100, 1.0f);
+        timeline.end(200);
+        SessionTimeline.Run second = timeline.begin(300, 1.0f);
+
+        assertNull(timeline.getRunAt(50));
+        assertEquals(first.id, timeline.getRunAt(100).id);
+        assertNull(timeline.getRunAt(200));
+        assertEquals(second.id, timeline.getRunAt(1000000).id);
+        // A chunk straddling a run's start or end overlaps it.
+        assertEquals(first.id, timeline.getRunOverlapping(50, 150).id);
+        assertEquals(first.id, timeline.getRunOverlapping(150, 250).id);
+        assertNull(timeline.getRunOverlapping(200, 300));
+        assertEquals(first.id, timeline.getRunOverlapping(150, 350).id);
+    }
+
+    @Test
+    public void removedRunIsReplaced() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        timeline.begin(0, 1.0f);
+        timeline.end(1000);
+        SessionTimeline.Run deleted = timeline.begin(5000, 1.0f);
+        timeline.end(7000);
+        assertEquals(deleted.id, timeline.removeLast().id);
+
+        SessionTimeline.Run next = timeline.begin(9000, 1.0f);
+        assertNotEquals(deleted.id, next.id);
+        assertEquals(1000, next.sessionStartUsec);
+        assertEquals(1500, timeline.toSessionUsec(9500));
+    }
+
+    @Test
+    public void beginClosesOpenRun() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        timeline.begin(0, 1.0f);
+        timeline.begin(400, 1.0f);
+        assertEquals(2, timeline.size());
+        assertEquals(400, timeline.get(0).endUsec);
+        assertEquals(400, timeline.get(1).sessionStartUsec);
+        assertTrue(timeline.getLast().isOpen());
+        assertNull(new SessionTimeline().end(5));
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        SessionTimeline timeline = new SessionTimeline();
+        SessionTimeline.Run old = timeline.begin(0, 1.0f);
+        timeline.end(1000);
+        timeline.reset();
+        assertEquals(0, timeline.size());
+        SessionTimeline.Run run = timeline.begin(5000, 1.0f);
+        assertEquals(0, run.sessionStartUsec);
+        assertNotEquals(old.id, run.id);
+    }
+
+    @Test
+    public void bootTimeFramesFallInTheirRun() throws Exception {
+        // The camera stamps from CLOCK_BOOTTIME, 5 s ahead of the monotonic clock.
+        long aheadNs = 5000000000L;
+        SessionTimeline timeline = new SessionTimeline();
+        CameraClock clock = new CameraClock();
+        SessionTimeline.Run run = timeline.begin(1000000, 1.0f);
+
+        long firstNs = clock.toMonotonicNs(1010000000L + aheadNs, 1040000000L);
+        long secondNs = clock.toMonotonicNs(1043333333L + aheadNs, 1083333333L);
+        assertTrue(run.contains(firstNs / 1000));
+        assertTrue(run.contains(secondNs / 1000));
+        // Unmapped, the first frame would land 5 s into the run.
+        assertEquals(40000, timeline.toSessionUsec(firstNs / 1000));
+        assertEquals(73333, timeline.toSessionUsec(secondNs / 1000));
+    }
+}
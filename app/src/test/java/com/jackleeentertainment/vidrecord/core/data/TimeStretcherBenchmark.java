@@ -0,0 +1,79 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Throughput benchmark for {@link TimeStretcher} on one thread.  Not a unit test; run main()
+ * on a plain JVM.
+ * <p/>
+ * Input is 44.1 kHz mono, the capture format, fed in 1024-sample blocks like the audio
+ * thread does: a 440 Hz tone with a slow vibrato plus noise, so the overlap search can't
+ * settle on one offset.  Reports how many times faster than real time each speed runs.
+ */
+public class TimeStretcherBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;
+    private static final float[] SPEEDS = {0.5f, 0.75f, 1.5f, 2.0f};
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final int SECONDS_PER_ITERATION = 60;
+
+    private static volatile long sSink;
+
+    public static void main(String[] args) throws Exception {
+        short[] signal = new short[SAMPLE_RATE * 10];
+        Random random = new Random(1);
+        for (int i = 0; i < signal.length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double hz = 440 + 20 * Math.sin(2 * Math.PI * 5 * t);
+            signal[i] = (short) (8000 * Math.sin(2 * Math.PI * hz * t) +
+                    1000 * random.nextGaussian());
+        }
+        short[] out = new short[BLOCK * 8];
+
+        for (float speed : SPEEDS) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+            stretcher.setSpeed(speed);
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                double x = iteration(stretcher, signal, out);
+                System.out.println(String.format(Locale.US,
+                        "# speed %.2f warmup %d: %,.0fx real time", speed, i + 1, x));
+            }
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                double x = iteration(stretcher, signal, out);
+                total += x;
+                min = Math.min(min, x);
+            }
+            System.out.println(String.format(Locale.US,
+                    "Result: speed %.2f: %,.0fx real time (min %,.0fx)", speed,
+                    total / MEASUREMENT_ITERATIONS, min));
+        }
+    }
+
+    /**
+     * Stretches SECONDS_PER_ITERATION seconds of input.
+     *
+     * @return Seconds of input processed per second of wall time.
+     */
+    private static double iteration(TimeStretcher stretcher, short[] signal, short[] out) {
+        long sum = 0;
+        int samples = SAMPLE_RATE * SECONDS_PER_ITERATION;
+        long start = System.nanoTime();
+        for (int done = 0; done < samples; done += BLOCK) {
+            int at = done % (signal.length - BLOCK);
+            stretcher.putSamples(signal, at, BLOCK);
+            int n;
+            while ((n = stretcher.receiveSamples(out, 0, out.length)) > 0) {
+                sum += out[n - 1];
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sSink = sum;
+        return SECONDS_PER_ITERATION / (elapsed / 1e9);
+    }
+}
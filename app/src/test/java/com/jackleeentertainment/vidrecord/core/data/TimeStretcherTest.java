@@ -0,0 +1,93 @@
+package com.jackleeentertainment.vidrecord.core.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TimeStretcher}.
+ */
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    private static short[] sine(double hz, int frames, int channelCount) {
+        short[] samples = new short[frames * channelCount];
+        for (int i = 0; i < frames; i++) {
+            short s = (short) (10000 * Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE));
+            for (int c = 0; c < channelCount; c++) {
+                samples[i * channelCount + c] = s;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Feeds the input in 1024-frame blocks and collects all output.
+     */
+    private static short[] stretch(TimeStretcher stretcher, short[] in, int channelCount) {
+        short[] out = new short[in.length * 8];
+        int outCount = 0;
+        int block = 1024 * channelCount;
+        for (int at = 0; at < in.length; at += block) {
+            stretcher.putSamples(in, at, Math.min(block, in.length - at));
+            outCount += stretcher.receiveSamples(out, outCount, out.length - outCount);
+        }
+        short[] result = new short[outCount];
+        System.arraycopy(out, 0, result, 0, outCount);
+        return result;
+    }
+
+    private static int countRisingZeroCrossings(short[] samples, int from, int to) {
+        int count = 0;
+        for (int i = from + 1; i < to; i++) {
+            if (samples[i - 1] < 0 && samples[i] >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void outputLengthFollowsSpeed() throws Exception {
+        float[] speeds = {0.5f, 0.75f, 1.5f, 2.0f};
+        for (float speed : speeds) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+            stretcher.setSpeed(speed);
+            short[] out = stretch(stretcher, sine(440, SAMPLE_RATE * 4, 1), 1);
+            double expected = SAMPLE_RATE * 4 / speed;
+            // Up to one sequence plus the seek window stays buffered.
+            assertEquals("speed " + speed, expected, out.length, SAMPLE_RATE * 0.1);
+        }
+    }
+
+    @Test
+    public void keepsPitch() throws Exception {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        stretcher.setSpeed(2.0f);
+        short[] out = stretch(stretcher, sine(440, SAMPLE_RATE * 4, 1), 1);
+        // One second of output still has ~440 cycles.
+        int cycles = countRisingZeroCrossings(out, 0, SAMPLE_RATE);
+        assertEquals(440, cycles, 10);
+    }
+
+    @Test
+    public void stereoStaysInterleaved() throws Exception {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setSpeed(1.5f);
+        short[] out = stretch(stretcher, sine(300, SAMPLE_RATE * 2, 2), 2);
+        assertEquals(0, out.length % 2);
+        for (int i = 0; i < out.length; i += 2) {
+            assertEquals(out[i], out[i + 1]);
+        }
+    }
+
+    @Test
+    public void clampsSpeed() throws Exception {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        stretcher.setSpeed(100f);
+        assertEquals(TimeStretcher.MAX_SPEED, stretcher.getSpeed(), 0);
+        stretcher.setSpeed(0f);
+        assertEquals(TimeStretcher.MIN_SPEED, stretcher.getSpeed(), 0);
+    }
+}